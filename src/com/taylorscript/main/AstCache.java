@@ -0,0 +1,538 @@
+package com.taylorscript.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class AstCache {
+    // Parsed scripts cached on disk next to their source, as script.tayc.
+    // An entry is keyed by the SHA-256 of the script and of every fragment
+    // it included, so it is used only while none of them has changed.
+    //
+    // Layout: magic, format version, script hash, the included fragments
+    // (name, canonical path, hash), then the statements in prefix order.
+    // Strings are pooled: the first use writes the text, later uses only
+    // its index. Bump FORMAT_VERSION whenever the tree or TokenType changes.
+    private static final int MAGIC = 0x54415943;  // "TAYC"
+    private static final int FORMAT_VERSION = 3;
+
+    // node tags
+    private static final byte NULL = 0;
+    private static final byte BLOCK = 1;
+    private static final byte EXPRESSION = 2;
+    private static final byte FUNCTION = 3;
+    private static final byte IF = 4;
+    private static final byte PRINT = 5;
+    private static final byte RETURN = 6;
+    private static final byte LET = 7;
+    private static final byte WHILE = 8;
+    private static final byte FOR = 9;
+    private static final byte BREAK = 10;
+    private static final byte CONTINUE = 11;
+    private static final byte ASSIGN = 20;
+    private static final byte BINARY = 21;
+    private static final byte CALL = 22;
+    private static final byte GROUPING = 23;
+    private static final byte LITERAL = 24;
+    private static final byte LOGICAL = 25;
+    private static final byte UNARY = 26;
+    private static final byte VARIABLE = 27;
+
+    // literal tags
+    private static final byte NIL_VALUE = 0;
+    private static final byte FALSE_VALUE = 1;
+    private static final byte TRUE_VALUE = 2;
+    private static final byte NUMBER_VALUE = 3;
+    private static final byte STRING_VALUE = 4;
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    private static int hits = 0;
+    private static int misses = 0;
+    private static int stores = 0;
+
+    static Path pathFor(Path script) {
+        return script.resolveSibling(script.getFileName() + "c");
+    }
+
+    static List<Statement> load(Path script, byte[] source) {
+        // Returns the cached statements, or null if there is no usable entry
+        Path path = pathFor(script);
+        if (!Files.isRegularFile(path)) {
+            misses++;
+            return null;
+        }
+
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION
+                    || !Arrays.equals(readHash(in), hash(source))) {
+                misses++;
+                return null;
+            }
+
+            Reader reader = new Reader(in);
+            int fragments = reader.readInt();
+            for (int i = 0; i < fragments; i++) {
+                String name = reader.readString();
+                String canonical = reader.readString();
+                byte[] expected = readHash(in);
+                // fragment names are resolved against the working directory,
+                // so the same name may now refer to another file
+                Path fragment = Includes.resolve(name);
+                if (fragment == null || !fragment.toString().equals(canonical)
+                        || !Arrays.equals(expected, hash(Files.readAllBytes(fragment)))) {
+                    misses++;
+                    return null;
+                }
+            }
+
+            List<Statement> statements = reader.readStatements();
+            hits++;
+            return statements;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                 | IndexOutOfBoundsException e) {
+            // unreadable or corrupt: parse the script again and replace it
+            misses++;
+            return null;
+        }
+    }
+
+    static void store(Path script, byte[] source, Includes includes, List<Statement> statements) {
+        // Best effort: a script in a read-only directory just isn't cached
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Writer writer = new Writer(new DataOutputStream(bytes));
+            writer.out.writeInt(MAGIC);
+            writer.out.writeInt(FORMAT_VERSION);
+            writer.out.write(hash(source));
+
+            // each fragment with the hash of the bytes its tokens came from:
+            // reading it again could pair a newer file with this tree
+            Map<String, Path> fragments = includes.included();
+            writer.writeInt(fragments.size());
+            for (Map.Entry<String, Path> fragment : fragments.entrySet()) {
+                byte[] hash = includes.hashOf(fragment.getValue());
+                if (hash == null) return;
+                writer.writeString(fragment.getKey());
+                writer.writeString(fragment.getValue().toString());
+                writer.out.write(hash);
+            }
+            writer.writeStatements(statements);
+
+            // written aside and moved in place, so concurrent runs never
+            // see a partial file
+            Path path = pathFor(script);
+            Path temp = Files.createTempFile(path.toAbsolutePath().getParent(),
+                    path.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                stores++;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // ignored, see above
+        }
+    }
+
+    static byte[] encode(List<Statement> statements) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new Writer(new DataOutputStream(bytes)).writeStatements(statements);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<Statement> decode(byte[] bytes) {
+        return new Reader(ByteBuffer.wrap(bytes)).readStatements();
+    }
+
+    static String report() {
+        return "AST cache: " + hits + " hits, " + misses + " misses, " + stores + " stored";
+    }
+
+    static byte[] hash(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // every JVM ships SHA-256
+        }
+    }
+
+    private static byte[] readHash(ByteBuffer in) {
+        byte[] hash = new byte[32];
+        in.get(hash);
+        return hash;
+    }
+
+    private static class Writer implements Expr.Visitor<Void>, Statement.Visitor<Void> {
+        final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeStatements(List<Statement> statements) throws IOException {
+            writeInt(statements.size());
+            for (Statement statement : statements) write(statement);
+            out.flush();
+        }
+
+        private void write(Statement statement) {
+            if (statement == null) {
+                writeByte(NULL);
+            } else {
+                statement.accept(this);
+            }
+        }
+
+        private void write(Expr expr) {
+            if (expr == null) {
+                writeByte(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void write(Token token) {
+            writeByte((byte) token.type.ordinal());
+            writeString(token.lexeme);
+            writeInt(token.lineNumber());
+        }
+
+        void writeInt(int value) {
+            // unsigned LEB128; every int written here is non-negative
+            try {
+                while ((value & ~0x7F) != 0) {
+                    out.writeByte((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeByte(byte value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void writeString(String value) {
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeInt(index);
+                return;
+            }
+
+            // a new string is introduced by the next free index
+            writeInt(strings.size());
+            strings.put(value, strings.size());
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(utf8.length);
+            try {
+                out.write(utf8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Void visitBlockStatement(Statement.Block statement) {
+            writeByte(BLOCK);
+            writeInt(statement.statements.size());
+            for (Statement inner : statement.statements) write(inner);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStatement(Statement.Break statement) {
+            writeByte(BREAK);
+            write(statement.keyword);
+            return null;
+        }
+
+        @Override
+        public Void visitContinueStatement(Statement.Continue statement) {
+            writeByte(CONTINUE);
+            write(statement.keyword);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStatement(Statement.Expression statement) {
+            writeByte(EXPRESSION);
+            write(statement.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitForStatement(Statement.For statement) {
+            writeByte(FOR);
+            write(statement.initializer);
+            write(statement.condition);
+            write(statement.increment);
+            write(statement.body);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStatement(Statement.Function statement) {
+            writeByte(FUNCTION);
+            write(statement.name);
+            writeInt(statement.params.size());
+            for (Token param : statement.params) write(param);
+            writeInt(statement.body.size());
+            for (Statement inner : statement.body) write(inner);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStatement(Statement.If statement) {
+            writeByte(IF);
+            write(statement.condition);
+            write(statement.thenBranch);
+            write(statement.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStatement(Statement.Print statement) {
+            writeByte(PRINT);
+            write(statement.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStatement(Statement.Return statement) {
+            writeByte(RETURN);
+            write(statement.keyword);
+            write(statement.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLetStatement(Statement.Let statement) {
+            writeByte(LET);
+            write(statement.name);
+            write(statement.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStatement(Statement.While statement) {
+            writeByte(WHILE);
+            write(statement.condition);
+            write(statement.body);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeByte(ASSIGN);
+            write(expr.name);
+            write(expr.value);
+            write(expr.equals);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeByte(BINARY);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            writeByte(CALL);
+            write(expr.callee);
+            write(expr.bracket);
+            writeInt(expr.args.size());
+            for (Expr arg : expr.args) write(arg);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeByte(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeByte(LITERAL);
+            Object value = expr.value;
+            try {
+                if (value == null) {
+                    out.writeByte(NIL_VALUE);
+                } else if (value instanceof Boolean) {
+                    out.writeByte((Boolean) value ? TRUE_VALUE : FALSE_VALUE);
+                } else if (value instanceof Double) {
+                    out.writeByte(NUMBER_VALUE);
+                    out.writeDouble((Double) value);
+                } else {
+                    out.writeByte(STRING_VALUE);
+                    writeString((String) value);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            writeByte(LOGICAL);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeByte(UNARY);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            writeByte(VARIABLE);
+            write(expr.name);
+            return null;
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer in;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        List<Statement> readStatements() {
+            int count = readInt();
+            List<Statement> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) statements.add(readStatement());
+            return statements;
+        }
+
+        private Statement readStatement() {
+            byte tag = in.get();
+            switch (tag) {
+                case NULL: return null;
+                case BLOCK: return new Statement.Block(readStatements());
+                case EXPRESSION: return new Statement.Expression(readExpr());
+                case FUNCTION: {
+                    Token name = readToken();
+                    int count = readInt();
+                    List<Token> params = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) params.add(readToken());
+                    return new Statement.Function(name, params, readStatements());
+                }
+                case IF: return new Statement.If(readExpr(), readStatement(), readStatement());
+                case PRINT: return new Statement.Print(readExpr());
+                case RETURN: return new Statement.Return(readToken(), readExpr());
+                case LET: return new Statement.Let(readToken(), readExpr());
+                case WHILE: return new Statement.While(readExpr(), readStatement());
+                case FOR: return new Statement.For(readStatement(), readExpr(), readExpr(), readStatement());
+                case BREAK: return new Statement.Break(readToken());
+                case CONTINUE: return new Statement.Continue(readToken());
+                default: throw new IllegalArgumentException("Unknown statement tag " + tag);
+            }
+        }
+
+        private Expr readExpr() {
+            byte tag = in.get();
+            switch (tag) {
+                case NULL: return null;
+                case ASSIGN: return new Expr.Assign(readToken(), readExpr(), readToken());
+                case BINARY: return new Expr.Binary(readExpr(), readToken(), readExpr());
+                case CALL: {
+                    Expr callee = readExpr();
+                    Token bracket = readToken();
+                    int count = readInt();
+                    List<Expr> args = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) args.add(readExpr());
+                    return new Expr.Call(callee, bracket, args);
+                }
+                case GROUPING: return new Expr.Grouping(readExpr());
+                case LITERAL: return new Expr.Literal(readLiteral());
+                case LOGICAL: return new Expr.Logical(readExpr(), readToken(), readExpr());
+                case UNARY: return new Expr.Unary(readToken(), readExpr());
+                case VARIABLE: return new Expr.Variable(readToken());
+                default: throw new IllegalArgumentException("Unknown expression tag " + tag);
+            }
+        }
+
+        private Object readLiteral() {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL_VALUE: return null;
+                case FALSE_VALUE: return false;
+                case TRUE_VALUE: return true;
+                case NUMBER_VALUE: return in.getDouble();
+                case STRING_VALUE: return readString();
+                default: throw new IllegalArgumentException("Unknown literal tag " + tag);
+            }
+        }
+
+        private Token readToken() {
+            TokenType type = TOKEN_TYPES[in.get()];
+            String lexeme = readString();
+            return new Token(type, lexeme, null, readInt());
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        String readString() {
+            int index = readInt();
+            if (index < strings.size()) return strings.get(index);
+            if (index > strings.size()) throw new IllegalArgumentException("Bad string index " + index);
+
+            int length = readInt();
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+                    StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            strings.add(value);
+            return value;
+        }
+    }
+}
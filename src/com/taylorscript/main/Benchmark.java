@@ -0,0 +1,324 @@
+package com.taylorscript.main;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+class Benchmark {
+    // Micro benchmarks for the front end and the interpreter.
+    // USAGE: java -cp target/classes com.taylorscript.main.Benchmark <name> [script]
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private static final String LOOP_SCRIPT =
+            "Let total = 0;\n"
+            + "AllTooWhile [Let i = 0; i < 1000000; i += 1] [\n"
+            + "    Let half = i / 2;\n"
+            + "    When [half > 10] total += half; Thats total -= 1;\n"
+            + "]\n";
+
+    private static final String CALLS_SCRIPT =
+            "Define fib[n] [\n"
+            + "    When [n < 2] BackTo n;\n"
+            + "    BackTo fib[n - 1] + fib[n - 2];\n"
+            + "]\n"
+            + "Let result = fib[25];\n";
+
+    private static final String RETURNS_SCRIPT =
+            "Define first[n] [\n"
+            + "    AllTooWhile [Let i = 0; i < 10; i += 1] [\n"
+            + "        When [i == n] BackTo i;\n"
+            + "    ]\n"
+            + "    BackTo -1;\n"
+            + "]\n"
+            + "AllTooWhile [Let i = 0; i < 200000; i += 1] first[3];\n";
+
+    private static final String TAIL_CALLS_SCRIPT =
+            "Define count[n, total] [\n"
+            + "    When [n == 0] BackTo total;\n"
+            + "    BackTo count[n - 1, total + n];\n"
+            + "]\n"
+            + "Let result = count[1000000, 0];\n";
+
+    // what TAIL_CALLS_SCRIPT amounts to
+    private static final String TAIL_LOOP_SCRIPT =
+            "Define count[n, total] [\n"
+            + "    AllTooWhile [n != 0] [ total += n; n -= 1; ]\n"
+            + "    BackTo total;\n"
+            + "]\n"
+            + "Let result = count[1000000, 0];\n";
+
+    private static final String STRINGS_SCRIPT =
+            "Let report = \"\";\n"
+            + "AllTooWhile [Let i = 0; i < 20000; i += 1] report = report + \"one line of the report. \";\n";
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("USAGE: Benchmark lexer|comments|parser|cache|library|loop|calls|returns|tailcalls|strings|frames|unboxed [script]");
+            System.exit(64);
+        }
+
+        byte[] script;
+        if (args.length > 1) {
+            script = Files.readAllBytes(Paths.get(args[1]));
+        } else if (args[0].equals("loop")) {
+            script = LOOP_SCRIPT.getBytes(StandardCharsets.US_ASCII);
+        } else if (args[0].equals("calls")) {
+            script = CALLS_SCRIPT.getBytes(StandardCharsets.US_ASCII);
+        } else if (args[0].equals("returns")) {
+            script = RETURNS_SCRIPT.getBytes(StandardCharsets.US_ASCII);
+        } else if (args[0].equals("tailcalls")) {
+            script = TAIL_CALLS_SCRIPT.getBytes(StandardCharsets.US_ASCII);
+        } else if (args[0].equals("strings")) {
+            script = STRINGS_SCRIPT.getBytes(StandardCharsets.US_ASCII);
+        } else if (args[0].equals("parser") || args[0].equals("cache")) {
+            script = expressionScript(50000).getBytes(StandardCharsets.US_ASCII);
+        } else {
+            script = generatedScript(20000, args[0].equals("comments")).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        switch (args[0]) {
+            case "lexer":
+            case "comments":
+                lexer(script);
+                break;
+            case "parser": parser(script); break;
+            case "cache": cache(script); break;
+            case "library": library(script); break;
+            case "loop":
+            case "calls":
+            case "returns":
+            case "strings":
+                interpreter(script);
+                break;
+            case "tailcalls":
+                System.out.println("Tail calls:");
+                interpreter(script);
+                System.out.println("The same loop:");
+                interpreter(TAIL_LOOP_SCRIPT.getBytes(StandardCharsets.US_ASCII));
+                break;
+            case "frames": frames(); break;
+            case "unboxed": unboxed(); break;
+            default:
+                System.out.println("Unknown benchmark '" + args[0] + "'.");
+                System.exit(64);
+        }
+    }
+
+    private static void lexer(byte[] script) throws IOException {
+        String source = new String(script, Charset.defaultCharset());
+        double megabytes = script.length / (1024.0 * 1024.0);
+        measure("Token list        ", megabytes, () -> new Lexer(source).scanTokens());
+        measure("Token arena       ", megabytes, () -> new Lexer(source).scanArena());
+        measure("Arena, ASCII bytes", megabytes,
+                () -> new Lexer(Source.of(script, Charset.defaultCharset())).scanArena());
+    }
+
+    private static void parser(byte[] script) throws IOException {
+        // Only the Pratt parser is left to time. On this script the
+        // recursive-descent parser it replaced ran at 5.0 MB/s and
+        // allocated 286 MB per round, against 7.3 MB/s and 182 MB for the
+        // Pratt parser (best of five runs each, same machine)
+        TokenArena tokens = new Lexer(Source.of(script, Charset.defaultCharset())).scanArena();
+        double megabytes = script.length / (1024.0 * 1024.0);
+        measure("Parser", megabytes, () -> new Parser(tokens).parse());
+    }
+
+    private static void cache(byte[] script) throws IOException {
+        List<Statement> statements = new Parser(new Lexer(
+                Source.of(script, Charset.defaultCharset())).scanArena()).parse();
+        byte[] encoded = AstCache.encode(statements);
+        double megabytes = script.length / (1024.0 * 1024.0);
+        System.out.printf("Encoded tree: %d bytes for %d bytes of source%n", encoded.length, script.length);
+        measure("Lex and parse  ", megabytes, () -> new Parser(new Lexer(
+                Source.of(script, Charset.defaultCharset())).scanArena()).parse());
+        measure("Decode .tayc   ", megabytes, () -> AstCache.decode(encoded));
+    }
+
+    private static void library(byte[] script) throws IOException {
+        // a script that defines many functions and calls few of them
+        TokenArena tokens = new Lexer(Source.of(script, Charset.defaultCharset())).scanArena();
+        double megabytes = script.length / (1024.0 * 1024.0);
+        measure("Parse all bodies  ", megabytes, () -> new Parser(tokens, false).parse());
+        measure("Defer bodies      ", megabytes, () -> new Parser(tokens, true).parse());
+    }
+
+    private static void interpreter(byte[] script) throws IOException {
+        List<Statement> statements = new Optimizer().optimize(new Parser(new Lexer(
+                Source.of(script, Charset.defaultCharset())).scanArena()).parse());
+        int frameSize = new Resolver().resolve(statements);
+        measure("Interpreter", () -> new Interpreter().interpret(statements, frameSize));
+        measure("Specialized", () -> new Interpreter(true).interpret(statements, frameSize));
+        measure("Compiled   ", () -> new Interpreter(false, true).interpret(statements, frameSize));
+        measure("Memoized   ", () -> new Interpreter(false, false, true).interpret(statements, frameSize));
+    }
+
+    private static void frames() throws IOException {
+        // Call overhead: time and GC pressure per call of a two-argument
+        // function: interpreted, compiled (-jit), a TSCallable written in
+        // Java, and a builtin (NativeFunction, called without a frame). The
+        // loop boxes i once per iteration; the rest is what a call allocates.
+        int calls = 200000;
+        String script = "Define pass[a, b] [ Let c = a; BackTo c; ]\n"
+                + "AllTooWhile [Let i = 0; i < " + calls + "; i += 1] pass[i, i];\n"
+                + "AllTooWhile [Let i = 0; i < " + calls + "; i += 1] native[i, i];\n"
+                + "AllTooWhile [Let i = 0; i < " + calls + "; i += 1] max[i, i];\n"
+                + "AllTooWhile [Let i = 0; i < " + calls + "; i += 1] [ Let c = i; ]\n";
+        List<Statement> statements = new Optimizer().optimize(new Parser(new Lexer(script).scanArena()).parse());
+        int frameSize = new Resolver().resolve(statements);
+        List<Statement> calling = statements.subList(0, 2);
+        List<Statement> callingNative = statements.subList(2, 3);
+        List<Statement> callingBuiltin = statements.subList(3, 4);
+        List<Statement> baseline = statements.subList(4, 5);
+        TSCallable nativePass = new TSCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, Object[] args, int base) {
+                return args[base];
+            }
+        };
+
+        Interpreter looping = new Interpreter();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) looping.interpret(baseline, frameSize);
+        long loopBytes = allocatedBytes(looping, baseline, frameSize);
+        System.out.printf("Interpreted calls: %s%n",
+                callCost(new Interpreter(), calling, baseline, frameSize, calls, loopBytes));
+        System.out.printf("Compiled calls:    %s%n",
+                callCost(new Interpreter(false, true), calling, baseline, frameSize, calls, loopBytes));
+        Interpreter interpreter = new Interpreter();
+        interpreter.globals.define("native", nativePass);
+        System.out.printf("Native calls:      %s%n",
+                callCost(interpreter, callingNative, baseline, frameSize, calls, loopBytes));
+        System.out.printf("Builtin calls:     %s%n",
+                callCost(new Interpreter(), callingBuiltin, baseline, frameSize, calls, loopBytes));
+    }
+
+    private static String callCost(Interpreter interpreter, List<Statement> calling, List<Statement> baseline,
+                                   int frameSize, int calls, long loopBytes) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            interpreter.interpret(calling, frameSize);
+            interpreter.interpret(baseline, frameSize);
+        }
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) interpreter.interpret(calling, frameSize);
+        double callNanos = (System.nanoTime() - startTime) / (double)ROUNDS;
+        startTime = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) interpreter.interpret(baseline, frameSize);
+        double loopNanos = (System.nanoTime() - startTime) / (double)ROUNDS;
+
+        long bytes = allocatedBytes(interpreter, calling, frameSize) - loopBytes;
+        return String.format("%6.1f ns, %d bytes allocated per call",
+                (callNanos - loopNanos) / calls, Math.max(0, bytes) / calls);
+    }
+
+    private static long allocatedBytes(Interpreter interpreter, List<Statement> statements, int frameSize) {
+        long allocated = allocatedBytes();
+        interpreter.interpret(statements, frameSize);
+        return allocatedBytes() - allocated;
+    }
+
+    private static void measure(String name, Task task) throws IOException {
+        // for benchmarks measured per run rather than per megabyte
+        for (int i = 0; i < WARMUP_ROUNDS; i++) task.run();
+
+        long allocated = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) task.run();
+        double millis = (System.nanoTime() - startTime) / 1e6;
+        allocated = allocatedBytes() - allocated;
+
+        System.out.printf("%s: %8.2f ms per round, %10d bytes allocated per round%n",
+                name, millis / ROUNDS, allocated / ROUNDS);
+    }
+
+    private static void measure(String name, double megabytes, Task task) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) task.run();
+
+        long allocated = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) task.run();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        allocated = allocatedBytes() - allocated;
+
+        System.out.printf("%s: %8.2f MB/s, %10d bytes allocated per round%n",
+                name, megabytes * ROUNDS / seconds, allocated / ROUNDS);
+    }
+
+    private static void unboxed() throws IOException {
+        // GC pressure of arithmetic: compared with an empty loop, each
+        // iteration should box only the value stored into t (16 bytes).
+        // UnboxedArithmeticTest fails the build when it boxes more.
+        int iterations = 200000;
+        String script = "Define sum[a, b, c, d] [ Let t = 0;\n"
+                + "  AllTooWhile [Let i = 0; i < " + iterations + "; i += 1] t = t + a * b - c / d + (a - 1) * 2;\n"
+                + "  BackTo t; ]\n"
+                + "Define empty[] [ AllTooWhile [Let i = 0; i < " + iterations + "; i += 1] [] ]\n"
+                + "sum[1.5, 2, 3, 4];\n"
+                + "empty[];\n";
+        List<Statement> statements = new Optimizer().optimize(new Parser(new Lexer(script).scanArena()).parse());
+        int frameSize = new Resolver().resolve(statements);
+        List<Statement> arithmetic = statements.subList(0, 3);
+        List<Statement> baseline = new ArrayList<>(statements.subList(0, 2));
+        baseline.add(statements.get(3));
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            new Interpreter().interpret(arithmetic, frameSize);
+            new Interpreter().interpret(baseline, frameSize);
+        }
+        // the least of a few rounds, so that nothing else the JVM
+        // allocates on this thread now and then counts against it
+        long perIteration = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long loopBytes = allocatedBytes(new Interpreter(), baseline, frameSize);
+            long arithmeticBytes = allocatedBytes(new Interpreter(), arithmetic, frameSize) - loopBytes;
+            perIteration = Math.min(perIteration, arithmeticBytes / iterations);
+        }
+        System.out.printf("Arithmetic: %d bytes allocated per iteration%n", perIteration);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static String generatedScript(int functions, boolean commentHeavy) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            if (commentHeavy) {
+                script.append("-* Generated helper ").append(i).append(".\n")
+                      .append("   Takes two numbers and returns their weighted total,\n")
+                      .append("   printing a notice when the total is large. *-\n");
+            }
+            script.append("-- helper number ").append(i).append('\n')
+                  .append("Define helper").append(i).append("[a, b] [\n")
+                  .append("    Let total = a * ").append(i).append(".5 + b;\n")
+                  .append("    When [total > 100] SpeakNow[\"big\"];\n")
+                  .append("    BackTo total;\n")
+                  .append("]\n");
+        }
+        return script.toString();
+    }
+
+    private static String expressionScript(int statements) {
+        StringBuilder script = new StringBuilder("Let a = 1; Let b = 2; Let c = 3;\n");
+        for (int i = 0; i < statements; i++) {
+            script.append("a = (a + ").append(i).append(") * b - c / 2 ^ -b;\n")
+                  .append("When [a >= b || !(c == ").append(i).append(") && b != nil] b += c;\n")
+                  .append("SpeakNow[max[a, b * 2, \"x\"] <= ").append(i).append(".25];\n");
+        }
+        return script.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package com.taylorscript.main;
+
+abstract class BinaryNode {
+    // What a Binary expression does with its operand values, in the
+    // Interpreter's -specialize mode. Every site starts UNINITIALIZED and
+    // rewrites itself on its first evaluation to the node for its operator
+    // and the operand types it saw, such as DOUBLE_ADD, which does one
+    // type check and the arithmetic with no switch on the operator. A
+    // specialized node that gets other operand types rewrites the site to
+    // GENERIC for good, which does everything Interpreter.binary does.
+    //
+    // Nodes keep no state of their own, so each is one shared instance and
+    // a rewrite is a store to Expr.Binary.node.
+
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+    static final BinaryNode GENERIC = new Generic();
+
+    private static final BinaryNode DOUBLE_ADD = new DoubleAdd();
+    private static final BinaryNode DOUBLE_SUBTRACT = new DoubleSubtract();
+    private static final BinaryNode DOUBLE_MULTIPLY = new DoubleMultiply();
+    private static final BinaryNode DOUBLE_DIVIDE = new DoubleDivide();
+    private static final BinaryNode DOUBLE_POWER = new DoublePower();
+    private static final BinaryNode DOUBLE_LESS = new DoubleLess();
+    private static final BinaryNode DOUBLE_LESS_EQUAL = new DoubleLessEqual();
+    private static final BinaryNode DOUBLE_GREATER = new DoubleGreater();
+    private static final BinaryNode DOUBLE_GREATER_EQUAL = new DoubleGreaterEqual();
+    private static final BinaryNode STRING_CONCAT = new StringConcat();
+
+    abstract Object execute(Expr.Binary site, Object left, Object right);
+
+    private static BinaryNode specialize(TokenType operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator) {
+                case PLUS: return DOUBLE_ADD;
+                case MINUS: return DOUBLE_SUBTRACT;
+                case STAR: return DOUBLE_MULTIPLY;
+                case SLASH: return DOUBLE_DIVIDE;
+                case CARET: return DOUBLE_POWER;
+                case LESS_THAN: return DOUBLE_LESS;
+                case LESS_THAN_EQ: return DOUBLE_LESS_EQUAL;
+                case GREATER_THAN: return DOUBLE_GREATER;
+                case GREATER_THAN_EQ: return DOUBLE_GREATER_EQUAL;
+            }
+        }
+        if (operator == TokenType.PLUS && left instanceof CharSequence && right instanceof CharSequence) {
+            return STRING_CONCAT;
+        }
+        return GENERIC;
+    }
+
+    static Object generalize(Expr.Binary site, Object left, Object right) {
+        site.node = GENERIC;
+        return GENERIC.execute(site, left, right);
+    }
+
+    private static final class Uninitialized extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            BinaryNode node = specialize(site.operator.type, left, right);
+            site.node = node;
+            return node.execute(site, left, right);
+        }
+    }
+
+    private static final class Generic extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            return Interpreter.binary(site.operator, left, right);
+        }
+    }
+
+    private static final class DoubleAdd extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class DoubleSubtract extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left - (double)right;
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class DoubleMultiply extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left * (double)right;
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class DoubleDivide extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                // a zero divisor raises its error without giving up the site
+                if ((double)right == 0) return Interpreter.binary(site.operator, left, right);
+                return (double)left / (double)right;
+            }
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class DoublePower extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return Math.pow((double)left, (double)right);
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class DoubleLess extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left < (double)right;
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class DoubleLessEqual extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left <= (double)right;
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class DoubleGreater extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left > (double)right;
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class DoubleGreaterEqual extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) return (double)left >= (double)right;
+            return generalize(site, left, right);
+        }
+    }
+
+    private static final class StringConcat extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary site, Object left, Object right) {
+            if (left instanceof CharSequence && right instanceof CharSequence) {
+                return TSString.concat((CharSequence)left, (CharSequence)right);
+            }
+            return generalize(site, left, right);
+        }
+    }
+}
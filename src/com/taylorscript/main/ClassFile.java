@@ -0,0 +1,340 @@
+package com.taylorscript.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class ClassFile {
+    // Just enough of the JVM class file format for the Jit: one class with
+    // static fields and methods whose code is written an instruction at a
+    // time. Classes are version 49, which the JVM verifies by type
+    // inference, so no stack map frames have to be computed.
+
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int DCONST_0 = 0x0e;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ANEWARRAY = 0xbd;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+
+    private static final int MAX_JUMP = Short.MAX_VALUE;
+
+    // constant pool entries, each already encoded, keyed by their encoding
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+    }
+
+    private int entry(String key, int tag, Object... parts) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+
+        DataOutputStream out = new DataOutputStream(pool);
+        try {
+            out.writeByte(tag);
+            for (Object part : parts) {
+                if (part instanceof String) out.writeUTF((String)part);
+                else if (part instanceof Double) out.writeDouble((Double)part);
+                else out.writeShort((Integer)part);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        index = poolCount;
+        // a double takes two entries
+        poolCount += tag == 6 ? 2 : 1;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    private int utf8(String text) {
+        return entry("U" + text, 1, text);
+    }
+
+    private int classRef(String name) {
+        return entry("C" + name, 7, utf8(name));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + " " + descriptor, 12, utf8(name), utf8(descriptor));
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        return entry(tag + owner + "." + name + " " + descriptor, tag,
+                classRef(owner), nameAndType(name, descriptor));
+    }
+
+    void field(int access, String name, String descriptor) {
+        fields.add(new byte[] {
+                (byte)(access >> 8), (byte)access,
+                (byte)(utf8(name) >> 8), (byte)utf8(name),
+                (byte)(utf8(descriptor) >> 8), (byte)utf8(descriptor),
+                0, 0 });
+    }
+
+    Code method(int access, String name, String descriptor) {
+        return new Code(access, name, descriptor);
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);  // interfaces
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0);  // attributes
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static final class Label {
+        private int position = -1;
+        private int depth = -1;  // operand stack depth on arrival
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    final class Code {
+        // The code of one method. Each instruction adjusts the tracked
+        // operand stack depth, which gives max_stack; field and method
+        // instructions work their effect out from the descriptor.
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int depth = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = argumentSize(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+        }
+
+        private void write(int b) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte)b;
+        }
+
+        private void write2(int value) {
+            write(value >> 8);
+            write(value);
+        }
+
+        private void adjust(int stackEffect) {
+            depth += stackEffect;
+            maxStack = Math.max(maxStack, depth);
+        }
+
+        void op(int opCode, int stackEffect) {
+            write(opCode);
+            adjust(stackEffect);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                write(value);
+            } else {
+                op(SIPUSH, 1);
+                write2(value);
+            }
+        }
+
+        void pushString(String value) {
+            ldc(entry("S" + value, 8, utf8(value)), 1);
+        }
+
+        void pushDouble(double value) {
+            if (Double.doubleToRawLongBits(value) == 0) {
+                op(DCONST_0, 2);
+                return;
+            }
+            // keyed by the bits, so 0.0 and -0.0 or NaNs stay apart
+            write(0x14);  // ldc2_w
+            write2(entry("D" + Double.doubleToRawLongBits(value), 6, value));
+            adjust(2);
+        }
+
+        private void ldc(int index, int stackEffect) {
+            if (index < 256) {
+                write(0x12);
+                write(index);
+            } else {
+                write(0x13);
+                write2(index);
+            }
+            adjust(stackEffect);
+        }
+
+        void local(int opCode, int index) {
+            if (index > 255) throw new IllegalStateException("Too many locals.");
+            boolean isDouble = opCode == DLOAD || opCode == DSTORE;
+            int size = isDouble ? 2 : 1;
+            op(opCode, opCode == DLOAD || opCode == ALOAD ? size : -size);
+            write(index);
+            maxLocals = Math.max(maxLocals, index + size);
+        }
+
+        void type(int opCode, String className) {
+            // checkcast or anewarray, neither changes the depth
+            op(opCode, 0);
+            write2(classRef(className));
+        }
+
+        void field(int opCode, String owner, String name, String descriptor) {
+            int size = descriptor.equals("D") || descriptor.equals("J") ? 2 : 1;
+            op(opCode, opCode == GETSTATIC ? size : -size);
+            write2(member(9, owner, name, descriptor));
+        }
+
+        void invoke(int opCode, String owner, String name, String descriptor) {
+            int stackEffect = returnSize(descriptor) - argumentSize(descriptor);
+            if (opCode != INVOKESTATIC) stackEffect--;
+            op(opCode, stackEffect);
+            write2(member(10, owner, name, descriptor));
+        }
+
+        void jump(int opCode, Label target) {
+            // a conditional jump pops its int (or nothing for GOTO)
+            op(opCode, opCode == GOTO ? 0 : -1);
+            target.depth = depth;
+            target.jumps.add(length - 1);
+            write2(0);
+        }
+
+        void mark(Label label) {
+            label.position = length;
+            // code after an unconditional jump is only reached through labels
+            if (label.depth >= 0) depth = label.depth;
+            else label.depth = depth;
+        }
+
+        void finish() {
+            if (length > MAX_JUMP) throw new IllegalStateException("Method too large.");
+            for (Label label : labels) {
+                for (int jump : label.jumps) {
+                    int offset = label.position - jump;
+                    code[jump + 1] = (byte)(offset >> 8);
+                    code[jump + 2] = (byte)offset;
+                }
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(length);
+                out.write(code, 0, length);
+                out.writeShort(0);  // exception table
+                out.writeShort(0);  // attributes
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            methods.add(bytes.toByteArray());
+        }
+
+        private final List<Label> labels = new ArrayList<>();
+
+        Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+    }
+
+    private static int argumentSize(String descriptor) {
+        int size = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            size += c == 'D' || c == 'J' ? 2 : 1;
+            while (descriptor.charAt(i) == '[') i++;
+            i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+        }
+        return size;
+    }
+
+    private static int returnSize(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        return c == 'V' ? 0 : c == 'D' || c == 'J' ? 2 : 1;
+    }
+}
@@ -0,0 +1,57 @@
+package com.taylorscript.main;
+
+import java.util.Arrays;
+
+abstract class CompiledFunction {
+    // The body of a TSFunction compiled by the Jit into a hidden class,
+    // which overrides the call method for its arity: call0..call4 take the
+    // arguments as JVM arguments, callN in an array. The body keeps its
+    // locals in JVM locals, so it needs no frame on the Interpreter's stack.
+    // It is not a TSCallable: scripts only ever see the TSFunction.
+
+    private final int arity;
+
+    CompiledFunction(int arity) {
+        this.arity = arity;
+    }
+
+    Object call0(Interpreter interpreter) {
+        throw new AbstractMethodError();
+    }
+
+    Object call1(Interpreter interpreter, Object a) {
+        throw new AbstractMethodError();
+    }
+
+    Object call2(Interpreter interpreter, Object a, Object b) {
+        throw new AbstractMethodError();
+    }
+
+    Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        throw new AbstractMethodError();
+    }
+
+    Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        throw new AbstractMethodError();
+    }
+
+    Object callN(Interpreter interpreter, Object[] args) {
+        throw new AbstractMethodError();
+    }
+
+    Object enter(Interpreter interpreter, Object[] frame, int base) {
+        // the arguments are frame[base..base + arity - 1]
+        switch (arity) {
+            case 0: return call0(interpreter);
+            case 1: return call1(interpreter, frame[base]);
+            case 2: return call2(interpreter, frame[base], frame[base + 1]);
+            case 3: return call3(interpreter, frame[base], frame[base + 1], frame[base + 2]);
+            case 4: return call4(interpreter, frame[base], frame[base + 1], frame[base + 2], frame[base + 3]);
+            default: return callN(interpreter, Arrays.copyOfRange(frame, base, base + arity));
+        }
+    }
+
+    int arity() {
+        return arity;
+    }
+}
@@ -0,0 +1,365 @@
+package com.taylorscript.main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+class Document {
+    // Incremental front end for text that is edited in place, such as a REPL
+    // session or an editor buffer. The text is kept as a list of chunks, each
+    // holding one top-level declaration with the whitespace and comments
+    // before it. An edit re-lexes and re-parses only the chunks it touches;
+    // every other chunk keeps its statements.
+    //
+    // The chunks are the nodes of a treap: a binary tree in text order,
+    // balanced by random priorities, where each node also holds the length
+    // and line breaks of the text under it. Finding the chunk at an offset
+    // or the line a chunk starts on takes time logarithmic in the number of
+    // chunks, and an edit only relinks the chunks it replaces. A chunk's
+    // anchor gets its line from where the chunk is in the tree, so chunks
+    // after an edit that adds or removes lines are not touched at all.
+
+    private static class Chunk {
+        Chunk(String text, ChunkAnchor anchor, List<Statement> statements, boolean isCutOff) {
+            this.text = text;
+            this.anchor = anchor;
+            this.statements = statements;
+            this.isCutOff = isCutOff;
+            int lines = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '\n') lines++;
+            }
+            this.lines = lines;
+            this.priority = ThreadLocalRandom.current().nextInt();
+        }
+
+        final String text;
+        final int lines;  // line breaks in text
+        final ChunkAnchor anchor;  // line the text starts on
+        final List<Statement> statements;
+        // its declaration ran into the end of the text it was parsed from,
+        // so text added after it may complete it
+        final boolean isCutOff;
+
+        // the treap
+        final int priority;
+        Chunk left;
+        Chunk right;
+        Chunk parent;
+        // over this chunk and its subtree
+        int count;
+        int totalLength;
+        int totalLines;
+    }
+
+    private static class ChunkAnchor extends Token.Anchor {
+        // the chunk while it is in the tree; before it is put there and
+        // after it is taken out, the line it was lexed at or last had
+        Chunk chunk;
+
+        ChunkAnchor(int lineNumber) {
+            super(lineNumber);
+        }
+
+        @Override
+        int lineNumber() {
+            return chunk != null ? lineOf(chunk) : lineNumber;
+        }
+    }
+
+    private Chunk root;
+    private List<Statement> changed = new ArrayList<>();
+    private List<Statement> replaced = new ArrayList<>();
+
+    // set by split() for the last region parsed
+    private boolean isUnterminated;
+    private boolean startsWithElse;
+
+    Document(String text) throws IOException {
+        edit(0, 0, text);
+    }
+
+    int length() {
+        return totalLength(root);
+    }
+
+    List<Statement> statements() {
+        List<Statement> statements = new ArrayList<>();
+        for (Chunk chunk : chunks(root)) statements.addAll(chunk.statements);
+        return statements;
+    }
+
+    List<Statement> changed() {
+        // statements re-parsed by the last edit, in source order
+        return changed;
+    }
+
+    List<Statement> replaced() {
+        // statements the last edit dropped in favour of changed(): those of
+        // the chunks it touched, including any it reached back to (for a
+        // 'Thats', or to complete a cut-off declaration)
+        return replaced;
+    }
+
+    int lines() {
+        // line breaks in the text
+        return totalLines(root);
+    }
+
+    String text() {
+        StringBuilder text = new StringBuilder(length());
+        for (Chunk chunk : chunks(root)) text.append(chunk.text);
+        return text.toString();
+    }
+
+    void edit(int offset, int removed, String inserted) throws IOException {
+        // Replaces text [offset, offset + removed) with inserted
+        if (offset < 0 || removed < 0 || offset + removed > length()) {
+            throw new IndexOutOfBoundsException("Edit outside of document.");
+        }
+
+        int size = count(root);
+        int first = chunkAt(offset);
+        while (first > 0 && get(first - 1).isCutOff) first--;
+        int last = chunkAt(offset + removed);
+        int regionStart = startOf(first);
+        StringBuilder region = new StringBuilder();
+        for (int i = first; i <= last && i < size; i++) region.append(get(i).text);
+        region.replace(offset - regionStart, offset - regionStart + removed, inserted);
+
+        List<Chunk> parsed;
+        while (true) {
+            int firstLine = first < size ? lineOf(get(first)) : 1;
+            TaylorScript.holdErrors();
+            parsed = split(region.toString(), firstLine);
+
+            if (isUnterminated && last + 1 < size) {
+                // the edit opened a string, comment or bracket: take in more text
+                TaylorScript.releaseErrors(false);
+                last++;
+                region.append(get(last).text);
+            } else if (startsWithElse && first > 0) {
+                // a 'Thats' belongs to the declaration before it
+                TaylorScript.releaseErrors(false);
+                first--;
+                region.insert(0, get(first).text);
+            } else {
+                TaylorScript.releaseErrors(true);
+                break;
+            }
+        }
+
+        replace(first, Math.min(last + 1, size), parsed);
+    }
+
+    private List<Chunk> split(String text, int firstLine) throws IOException {
+        Lexer lexer = new Lexer(text, firstLine);
+        TokenArena tokens = lexer.scanArena();
+        Parser parser = new Parser(tokens);
+        startsWithElse = tokens.type(0) == TokenType.ELSE && tokens.isMain(0);
+
+        List<Chunk> result = new ArrayList<>();
+        List<Statement> statements = new ArrayList<>();
+        ChunkAnchor anchor = new ChunkAnchor(firstLine);
+        tokens.anchor(anchor);
+        int chunkStart = 0;
+
+        while (!parser.isAtEnd()) {
+            int from = parser.position();
+            statements.add(parser.parseDeclaration());
+
+            // a chunk ends after the declaration's last token from this text;
+            // declarations made only of fragment tokens join the next chunk
+            int lastToken = parser.position() - 1;
+            while (lastToken >= from && !tokens.isMain(lastToken)) lastToken--;
+            if (lastToken < from) continue;
+
+            int end = tokens.end(lastToken);
+            result.add(new Chunk(text.substring(chunkStart, end), anchor, statements,
+                    parser.reachedEnd()));
+            chunkStart = end;
+            statements = new ArrayList<>();
+            anchor = new ChunkAnchor(tokens.line(lastToken));
+            tokens.anchor(anchor);
+        }
+
+        if (chunkStart < text.length() || !statements.isEmpty()) {
+            result.add(new Chunk(text.substring(chunkStart), anchor, statements,
+                    parser.reachedEnd()));
+        }
+        isUnterminated = lexer.isUnterminated() || parser.reachedEnd();
+        return result;
+    }
+
+    private void replace(int first, int end, List<Chunk> parsed) {
+        // chunks [first, end) are replaced by parsed
+        Chunk[] before = split(root, first);
+        Chunk[] after = split(before[1], end - first);
+        List<Chunk> old = chunks(after[0]);
+
+        // the old chunks leave the tree, keeping the lines they are on
+        int line = 1 + totalLines(before[0]);
+        for (Chunk chunk : old) {
+            chunk.anchor.lineNumber = line;
+            chunk.anchor.chunk = null;
+            line += chunk.lines;
+        }
+
+        // chunks whose text did not change keep their statements
+        int prefix = 0;
+        while (prefix < old.size() && prefix < parsed.size()
+                && old.get(prefix).text.equals(parsed.get(prefix).text)) {
+            parsed.set(prefix, old.get(prefix));
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < old.size() - prefix && suffix < parsed.size() - prefix) {
+            Chunk previous = old.get(old.size() - 1 - suffix);
+            if (!previous.text.equals(parsed.get(parsed.size() - 1 - suffix).text)) break;
+            parsed.set(parsed.size() - 1 - suffix, previous);
+            suffix++;
+        }
+
+        changed = new ArrayList<>();
+        for (int i = prefix; i < parsed.size() - suffix; i++) {
+            changed.addAll(parsed.get(i).statements);
+        }
+        replaced = new ArrayList<>();
+        for (int i = prefix; i < old.size() - suffix; i++) {
+            replaced.addAll(old.get(i).statements);
+        }
+
+        Chunk middle = null;
+        for (Chunk chunk : parsed) {
+            chunk.left = null;
+            chunk.right = null;
+            middle = merge(middle, update(chunk));
+            chunk.anchor.chunk = chunk;
+        }
+        root = merge(merge(before[0], middle), after[1]);
+        if (root != null) root.parent = null;
+    }
+
+    private int chunkAt(int offset) {
+        // index of the chunk containing offset; the end belongs to the last chunk
+        int index = 0;
+        Chunk chunk = root;
+        while (chunk != null) {
+            int leftLength = totalLength(chunk.left);
+            if (offset < leftLength) {
+                chunk = chunk.left;
+            } else if (offset < leftLength + chunk.text.length()) {
+                return index + count(chunk.left);
+            } else {
+                offset -= leftLength + chunk.text.length();
+                index += count(chunk.left) + 1;
+                chunk = chunk.right;
+            }
+        }
+        return Math.max(count(root) - 1, 0);
+    }
+
+    private int startOf(int index) {
+        // length of the text before chunk index
+        int start = 0;
+        Chunk chunk = root;
+        while (chunk != null) {
+            int leftCount = count(chunk.left);
+            if (index <= leftCount) {
+                chunk = chunk.left;
+            } else {
+                start += totalLength(chunk.left) + chunk.text.length();
+                index -= leftCount + 1;
+                chunk = chunk.right;
+            }
+        }
+        return start;
+    }
+
+    private Chunk get(int index) {
+        Chunk chunk = root;
+        while (true) {
+            int leftCount = count(chunk.left);
+            if (index == leftCount) return chunk;
+            if (index < leftCount) {
+                chunk = chunk.left;
+            } else {
+                index -= leftCount + 1;
+                chunk = chunk.right;
+            }
+        }
+    }
+
+    private static int lineOf(Chunk chunk) {
+        // 1 + the line breaks before chunk, from the subtrees left of its path
+        int line = 1 + totalLines(chunk.left);
+        for (Chunk child = chunk; child.parent != null; child = child.parent) {
+            Chunk parent = child.parent;
+            if (parent.right == child) line += totalLines(parent.left) + parent.lines;
+        }
+        return line;
+    }
+
+    private static List<Chunk> chunks(Chunk tree) {
+        List<Chunk> chunks = new ArrayList<>();
+        collect(tree, chunks);
+        return chunks;
+    }
+
+    private static void collect(Chunk tree, List<Chunk> chunks) {
+        if (tree == null) return;
+        collect(tree.left, chunks);
+        chunks.add(tree);
+        collect(tree.right, chunks);
+    }
+
+    private static Chunk[] split(Chunk tree, int count) {
+        // the first count chunks of tree, and the rest
+        if (tree == null) return new Chunk[2];
+        if (count(tree.left) >= count) {
+            Chunk[] parts = split(tree.left, count);
+            tree.left = parts[1];
+            parts[1] = update(tree);
+            return parts;
+        }
+        Chunk[] parts = split(tree.right, count - count(tree.left) - 1);
+        tree.right = parts[0];
+        parts[0] = update(tree);
+        return parts;
+    }
+
+    private static Chunk merge(Chunk left, Chunk right) {
+        // every chunk of left comes before every chunk of right
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        }
+        right.left = merge(left, right.left);
+        return update(right);
+    }
+
+    private static Chunk update(Chunk chunk) {
+        // after its children changed
+        chunk.count = 1 + count(chunk.left) + count(chunk.right);
+        chunk.totalLength = chunk.text.length() + totalLength(chunk.left) + totalLength(chunk.right);
+        chunk.totalLines = chunk.lines + totalLines(chunk.left) + totalLines(chunk.right);
+        if (chunk.left != null) chunk.left.parent = chunk;
+        if (chunk.right != null) chunk.right.parent = chunk;
+        return chunk;
+    }
+
+    private static int count(Chunk tree) {
+        return tree == null ? 0 : tree.count;
+    }
+
+    private static int totalLength(Chunk tree) {
+        return tree == null ? 0 : tree.totalLength;
+    }
+
+    private static int totalLines(Chunk tree) {
+        return tree == null ? 0 : tree.totalLines;
+    }
+}
@@ -1,48 +1,74 @@
 package com.taylorscript.main;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
-    // For bindings
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Global bindings, in a growable table of slots. Locals live in frames
+    // (see Resolver), so this is only used for the global scope.
+    //
+    // Names are interned to slot numbers once per process. The Resolver
+    // stores that number on every global Variable, Assign, Let and Define,
+    // so running code indexes the table directly and never hashes a name.
+    // A slot keeps its number for good: redefining a global overwrites the
+    // value and every site that cached the slot sees the new one.
+    //
+    // functionEpoch counts the stores that bound or unbound a function,
+    // so that what was worked out from the functions bound to globals
+    // (see Memo) can tell when it is out of date.
+    private static final Map<String, Integer> slots = new HashMap<>();
 
-    Environment() {
-        // For global scope
-        enclosing = null;
-    }
+    // value of a slot whose name was referenced but never defined
+    private static final Object UNDEFINED = new Object();
 
-    Environment(Environment enclosing) {
-        // For local scope
-        this.enclosing = enclosing;
-    }
+    private Object[] values = new Object[0];
+    int functionEpoch = 0;
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    static synchronized int slotOf(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
         }
+        return slot;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    Object get(Token name, int slot) {
+        Object value = slot < values.length ? values[slot] : UNDEFINED;
+        if (value == UNDEFINED) throw undefined(name);
+        return value;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+    void assign(Token name, int slot, Object value) {
+        if (slot >= values.length || values[slot] == UNDEFINED) throw undefined(name);
+        if (value instanceof TSCallable || values[slot] instanceof TSCallable) functionEpoch++;
+        values[slot] = value;
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
+    void define(int slot, Object value) {
+        if (slot >= values.length) grow(slot);
+        if (value instanceof TSCallable || values[slot] instanceof TSCallable) functionEpoch++;
+        values[slot] = value;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    Object valueAt(int slot) {
+        // null for a global that isn't defined
+        Object value = slot < values.length ? values[slot] : null;
+        return value == UNDEFINED ? null : value;
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        define(slotOf(name), value);
+    }
+
+    private void grow(int slot) {
+        int size = values.length;
+        values = Arrays.copyOf(values, Math.max(slot + 1, size * 2));
+        Arrays.fill(values, size, values.length, UNDEFINED);
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 }
@@ -29,6 +29,9 @@ abstract class Expr {
         final Token name;
         final Expr value;
         final Token equals;
+        // set by the Resolver: the frame slot of a local, or the global slot
+        int slot = -1;
+        int global = -1;
     }
 
     static class Binary extends Expr {
@@ -46,6 +49,10 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        // rewritten as the Interpreter sees operand types (-specialize)
+        BinaryNode node = BinaryNode.UNINITIALIZED;
+        // set by the Resolver: the value is a number whenever there is one
+        boolean numeric = false;
     }
 
     static class Call extends Expr {
@@ -63,6 +70,9 @@ abstract class Expr {
         final Expr callee;
         final Token bracket;
         final List<Expr> args;
+        // the last callable (by declaration, for a function) whose arity
+        // the Interpreter found matching args
+        Object checked;
     }
 
     static class Grouping extends Expr {
@@ -121,6 +131,8 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        // set by the Resolver, see Binary
+        boolean numeric = false;
     }
 
     static class Variable extends Expr {
@@ -134,6 +146,9 @@ abstract class Expr {
         }
 
         final Token name;
+        // set by the Resolver: the frame slot of a local, or the global slot
+        int slot = -1;
+        int global = -1;
     }
 
 
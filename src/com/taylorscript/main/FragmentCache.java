@@ -0,0 +1,76 @@
+package com.taylorscript.main;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class FragmentCache {
+    // Lexed Tailor fragments (.lor files) keyed by canonical path, shared by
+    // every run in this process. An entry is reused while the file keeps
+    // the same modification time and size.
+    static final FragmentCache shared = new FragmentCache();
+
+    static class Fragment {
+        Fragment(TokenArena tokens, int[] includeAt, int[] includeLines,
+                 String[] includes, long modified, long size, byte[] hash) {
+            this.tokens = tokens;
+            this.includeAt = includeAt;
+            this.includeLines = includeLines;
+            this.includes = includes;
+            this.modified = modified;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        // the fragment's own tokens, without EOF and without nested includes
+        final TokenArena tokens;
+        // nested includes, spliced in before tokens[includeAt[i]]
+        final int[] includeAt;
+        final int[] includeLines;
+        final String[] includes;
+        final long modified;
+        final long size;
+        // of the bytes that were lexed, for the .tayc (see AstCache.store)
+        final byte[] hash;
+    }
+
+    private final Map<Path, Fragment> fragments = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger skips = new AtomicInteger();
+
+    Fragment get(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+
+        Fragment cached = fragments.get(path);
+        if (cached != null && cached.modified == modified && cached.size == size) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        byte[] bytes = Files.readAllBytes(path);
+        Lexer lexer = new Lexer(new String(bytes, Charset.defaultCharset()));
+        Fragment fragment = lexer.scanFragment(modified, size, AstCache.hash(bytes));
+        // fragments with lexing errors are re-lexed so the errors are reported again
+        if (!lexer.hadError()) fragments.put(path, fragment);
+        return fragment;
+    }
+
+    void skipped() {
+        // an include of a fragment that was already included in this run
+        skips.incrementAndGet();
+    }
+
+    String report() {
+        return "Fragment cache: " + hits.get() + " hits, " + misses.get() + " misses, "
+                + skips.get() + " repeated includes skipped";
+    }
+}
@@ -0,0 +1,79 @@
+package com.taylorscript.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+class Includes {
+    // Include-once bookkeeping for one run: fragment name -> canonical path
+    // of every fragment included so far, and the chain being spliced.
+    private final Map<String, Path> included = new HashMap<>();
+    private final ArrayDeque<Path> including = new ArrayDeque<>();
+    // hash of the bytes each spliced fragment was lexed from
+    private final Map<Path, byte[]> hashes = new HashMap<>();
+
+    Path enter(String name, int line) throws IOException {
+        // Returns the fragment to splice, or null if it must be skipped.
+        // Every successful enter() is paired with an exit().
+        Path path = included.get(name);
+        if (path == null) {
+            path = resolve(name);
+            if (path == null) {
+                TaylorScript.error(line, "Fragment code doesn't exist.");
+                return null;
+            }
+            boolean seen = included.containsValue(path);  // same file, other name
+            included.put(name, path);
+            if (!seen) {
+                including.push(path);
+                return path;
+            }
+        }
+
+        if (including.contains(path)) {
+            cycle(path, line);
+        } else {
+            FragmentCache.shared.skipped();
+        }
+        return null;
+    }
+
+    void exit() {
+        including.pop();
+    }
+
+    void lexed(Path path, byte[] hash) {
+        hashes.put(path, hash);
+    }
+
+    byte[] hashOf(Path path) {
+        // null for a fragment that was never spliced (it didn't resolve)
+        return hashes.get(path);
+    }
+
+    Map<String, Path> included() {
+        // every fragment name seen so far, with the file it resolved to
+        return Collections.unmodifiableMap(included);
+    }
+
+    static Path resolve(String name) throws IOException {
+        // fragment names are relative to the working directory
+        File file = new File(name + ".lor");
+        if (!file.isFile()) return null;
+        return file.toPath().toRealPath();
+    }
+
+    private void cycle(Path path, int line) {
+        StringBuilder chain = new StringBuilder();
+        for (Iterator<Path> it = including.descendingIterator(); it.hasNext(); ) {
+            chain.append(it.next().getFileName()).append(" -> ");
+        }
+        chain.append(path.getFileName());
+        TaylorScript.error(line, "Circular fragment include: " + chain + ".");
+    }
+}
@@ -1,16 +1,66 @@
 package com.taylorscript.main;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-class Interpreter implements Expr.Visitor<Object>, Statement.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Statement.Visitor<Interpreter.Completion> {
+    // How a statement ended when it didn't just run to its end (null). A
+    // signal is returned up through the enclosing statements until the
+    // loop or call that handles it; a return leaves its value in
+    // returnValue. No exception is thrown for control flow, so the
+    // executor's recursion stays inlinable.
+    enum Completion { BREAK, CONTINUE, RETURN }
+
     final Environment globals = new Environment();
-    private Environment environment = globals;
+    // evaluate Binary expressions through their self-specializing nodes
+    private final boolean specialize;
+    // compile hot functions to JVM bytecode (see Jit)
+    private final boolean jit;
+    // keep the results of pure functions (see Memo)
+    private final boolean memoize;
+    // Frames of the running calls, one above the other in a single array:
+    // the running function's locals (or the script's block locals) are
+    // stack[base + slot], and stack[top..] is free. No construct captures
+    // a frame (see Resolver), so a frame always dies with its call and is
+    // popped on return instead of being allocated per call.
+    private Object[] stack = new Object[64];
+    private int base = 0;
+    private int top = 0;
+    private Object returnValue;
+    // set by a tail call instead of returnValue: the function to run next
+    // in the returning frame, with its arguments on top of the stack
+    private TSFunction tailCallee;
+
+    Interpreter() {
+        this(false);
+    }
+
+    Interpreter(boolean specialize) {
+        this(specialize, false);
+    }
+
+    Interpreter(boolean specialize, boolean jit) {
+        this(specialize, jit, false);
+    }
+
+    Interpreter(boolean specialize, boolean jit, boolean memoize) {
+        this.specialize = specialize;
+        this.jit = jit;
+        this.memoize = memoize;
+        NativeFunction.defineLibrary(globals);
+    }
 
-    void interpret(List<Statement> statements) {
+    void interpret(List<Statement> statements, int frameSize) {
+        // statements must have been through the Resolver, which gave frameSize
+        Arrays.fill(stack, 0, top, null);
+        base = 0;
+        top = 0;
+        returnValue = null;
+        pushFrame(frameSize);
         try {
             for (Statement statement : statements) {
-                execute(statement);
+                // a top-level return ends the script
+                if (execute(statement) != null) break;
             }
         } catch (RuntimeError error) {
             TaylorScript.runtimeError(error);
@@ -37,6 +87,8 @@ class Interpreter implements Expr.Visitor<Object>, Statement.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.numeric) return evaluateDouble(expr);
+
         // evaluate first the operand before the unary operator
         Object rightSubExpr = evaluate(expr.right);
 
@@ -53,23 +105,38 @@ class Interpreter implements Expr.Visitor<Object>, Statement.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        // a local is always declared before any code that resolved to it
+        return expr.slot < 0 ? globals.get(expr.name, expr.global) : stack[base + expr.slot];
+    }
+
+    private Object lookUp(Expr.Assign expr) {
+        return expr.slot < 0 ? globals.get(expr.name, expr.global) : stack[base + expr.slot];
+    }
+
+    private void define(int slot, int global, Object value) {
+        if (slot < 0) {
+            globals.define(global, value);
+        } else {
+            stack[base + slot] = value;
+        }
     }
 
     @Override
-    public Void visitWhileStatement(Statement.While statement) {
+    public Completion visitWhileStatement(Statement.While statement) {
         while (isTruthy(evaluate(statement.condition))) {
-            execute(statement.body);
+            Completion completion = execute(statement.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
         }
         return null;
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         // Check left/right operands if they're numbers
         if (left instanceof Double && right instanceof Double) {
             if (operator.type == TokenType.SLASH && (Double)right == 0) {
@@ -82,56 +149,88 @@ class Interpreter implements Expr.Visitor<Object>, Statement.Visitor<Void> {
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        if (expr.equals.type != TokenType.ASSIGN_EQUAL && Resolver.isNumeric(expr.value)) {
+            return compoundAssignDouble(expr);
+        }
+
         Object value = evaluate(expr.value);
         switch (expr.equals.type) {
             case ASSIGN_EQUAL:
                 break;
             case PLUS_EQ: {
-                Object current = environment.get(expr.name);
+                Object current = lookUp(expr);
                 checkNumberOperands(expr.equals, current, value);
                 value = (double) current + (double) value;
                 break;
             }
             case MINUS_EQ: {
-                Object current = environment.get(expr.name);
+                Object current = lookUp(expr);
                 checkNumberOperands(expr.equals, current, value);
                 value = (double) current - (double) value;
                 break;
             }
             case STAR_EQ: {
-                Object current = environment.get(expr.name);
+                Object current = lookUp(expr);
                 checkNumberOperands(expr.equals, current, value);
                 value = (double) current * (double) value;
                 break;
             }
             case SLASH_EQ: {
-                Object current = environment.get(expr.name);
+                Object current = lookUp(expr);
                 checkNumberOperands(expr.equals, current, value);
                 value = (double) current / (double) value;
                 break;
             }
         }
 
-        environment.assign(expr.name, value);
+        store(expr, value);
         return value;
     }
 
-    private boolean isTruthy(Object object) {
+    private Object compoundAssignDouble(Expr.Assign expr) {
+        // x op= numeric expression, without boxing the right-hand side
+        double value = evaluateDouble(expr.value);
+        Object current = lookUp(expr);
+        if (!(current instanceof Double)) {
+            throw new RuntimeError(expr.equals, "Operands must be numbers.");
+        }
+
+        double result;
+        switch (expr.equals.type) {
+            case PLUS_EQ: result = (double)current + value; break;
+            case MINUS_EQ: result = (double)current - value; break;
+            case STAR_EQ: result = (double)current * value; break;
+            default: result = (double)current / value; break;
+        }
+        Object boxed = result;
+        store(expr, boxed);
+        return boxed;
+    }
+
+    private void store(Expr.Assign expr, Object value) {
+        if (expr.slot < 0) {
+            globals.assign(expr.name, expr.global, value);
+        } else {
+            stack[base + expr.slot] = value;
+        }
+    }
+
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         // Just checks if both objects are equal
         // Used for "==" operator
         if (a == null && b == null) return true;
         if (a == null) return false;
 
-        return a.equals(b);
+        return TSString.flatten(a).equals(TSString.flatten(b));
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "The0";
 
         if (object instanceof Double) {
@@ -156,103 +255,356 @@ class Interpreter implements Expr.Visitor<Object>, Statement.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void execute(Statement statement) {
-        statement.accept(this);
+    private Completion execute(Statement statement) {
+        return statement.accept(this);
     }
 
-    void executeBlock(List<Statement> statements, Environment environment) {
-        Environment previous = this.environment;
+    private int pushFrame(int size) {
+        int frameBase = top;
+        top += size;
+        if (top > stack.length) stack = Arrays.copyOf(stack, Math.max(top, stack.length * 2));
+        return frameBase;
+    }
+
+    private void popFrame(int frameBase) {
+        // cleared so the stack keeps nothing reachable; a tail call can
+        // leave top below a frame that was already cleared
+        if (frameBase < top) Arrays.fill(stack, frameBase, top, null);
+        top = frameBase;
+    }
+
+    Object call(TSFunction function, Object[] args, int argsBase) {
+        // Arguments already on top of the stack, where callers put them,
+        // become the first slots of the frame as they are; from anywhere
+        // else they are copied there.
+        int arity = function.arity();
+        int callerTop = top;
+        int callerBase = base;
+        int frameBase = argsBase;
+        if (args != stack || argsBase + arity != top) {
+            frameBase = pushFrame(arity);
+            System.arraycopy(args, argsBase, stack, frameBase, arity);
+        }
         try {
-            this.environment = environment;
+            // A pure function's result may be known already. Its body runs
+            // in this Interpreter even once compiled, so that the calls it
+            // makes come back here to be looked up as well.
+            Memo memo = memoize ? function.memo(globals) : null;
+            Object key = null;
+            if (memo != null) {
+                Object value = memo.get(stack, frameBase, arity);
+                if (value != Memo.MISSING) return value;
+                key = memo.key(stack, frameBase, arity);
+            }
 
-            for (Statement statement : statements) {
-                execute(statement);
+            // Tail calls run in this loop, each in the frame of the last,
+            // so tail recursion of any depth takes no Java stack. The
+            // result is the first function's.
+            for (;;) {
+                CompiledFunction compiled = jit && !function.isMemoized() ? function.compiled() : null;
+                Object value;
+                if (compiled != null) {
+                    value = compiled.enter(this, stack, frameBase);
+                } else {
+                    // the rest of the frame, once a deferred body is known to be needed
+                    pushFrame(function.frameSize() - arity);
+                    // the body runs here, not in a method of its own (see
+                    // visitCallExpr)
+                    base = frameBase;
+                    value = null;
+                    for (Statement statement : function.body()) {
+                        // only a return can end a body early
+                        if (statement.accept(this) != null) {
+                            value = returnValue;
+                            returnValue = null;
+                            break;
+                        }
+                    }
+                }
+                if (tailCallee == null) {
+                    if (memo != null) memo.put(key, value);
+                    return value;
+                }
+
+                function = tailCallee;
+                tailCallee = null;
+                arity = function.arity();
+                System.arraycopy(stack, top - arity, stack, frameBase, arity);
+                popFrame(frameBase + arity);
             }
         } finally {
-            this.environment = previous;
+            // the arguments are the caller's to pop
+            popFrame(callerTop);
+            base = callerBase;
+        }
+    }
+
+    // Tail calls from code compiled by the Jit, which pushes the arguments
+    // one by one. A TSFunction is left to the call running the compiled
+    // body, as from visitReturnStatement; where compiled code called that
+    // body directly, finishCall runs it.
+
+    void pushArgument(Object value) {
+        int slot = pushFrame(1);
+        stack[slot] = value;
+    }
+
+    Object tailCall(TSCallable function, int count) {
+        int argsBase = top - count;
+        if (function instanceof TSFunction) {
+            tailCallee = (TSFunction)function;
+            return null;
+        }
+        try {
+            return function.call(this, stack, argsBase);
+        } finally {
+            popFrame(argsBase);
+        }
+    }
+
+    Object finishCall(Object value) {
+        // value is what a compiled body returned
+        if (tailCallee == null) return value;
+        TSFunction function = tailCallee;
+        tailCallee = null;
+        int argsBase = top - function.arity();
+        try {
+            return call(function, stack, argsBase);
+        } finally {
+            popFrame(argsBase);
+        }
+    }
+
+    Object callWith(TSCallable function, int count, Object a, Object b, Object c, Object d) {
+        // for callers holding up to four arguments in hand
+        int frameBase = pushFrame(count);
+        try {
+            if (count > 0) stack[frameBase] = a;
+            if (count > 1) stack[frameBase + 1] = b;
+            if (count > 2) stack[frameBase + 2] = c;
+            if (count > 3) stack[frameBase + 3] = d;
+            return function.call(this, stack, frameBase);
+        } finally {
+            popFrame(frameBase);
         }
     }
 
     @Override
-    public Void visitBlockStatement(Statement.Block statement) {
-        executeBlock(statement.statements, new Environment(environment));
+    public Completion visitBlockStatement(Statement.Block statement) {
+        // a block's locals live in the enclosing frame
+        for (Statement inner : statement.statements) {
+            Completion completion = execute(inner);
+            if (completion != null) return completion;
+        }
         return null;
     }
 
     @Override
-    public Void visitExpressionStatement(Statement.Expression statement) {
+    public Completion visitBreakStatement(Statement.Break statement) {
+        return Completion.BREAK;
+    }
+
+    @Override
+    public Completion visitContinueStatement(Statement.Continue statement) {
+        return Completion.CONTINUE;
+    }
+
+    @Override
+    public Completion visitExpressionStatement(Statement.Expression statement) {
         evaluate(statement.expression);
         return null;
     }
 
     @Override
-    public Void visitFunctionStatement(Statement.Function statement) {
+    public Completion visitForStatement(Statement.For statement) {
+        // the loop variable and the body's locals are slots of this frame,
+        // so an iteration allocates no scope
+        if (statement.initializer != null) execute(statement.initializer);
+
+        while (statement.condition == null || isTruthy(evaluate(statement.condition))) {
+            Completion completion = execute(statement.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+            // a continue still runs the increment
+            if (statement.increment != null) evaluate(statement.increment);
+        }
+        return null;
+    }
+
+    @Override
+    public Completion visitFunctionStatement(Statement.Function statement) {
         TSFunction function = new TSFunction(statement);
-        environment.define(statement.name.lexeme, function);
+        define(statement.slot, statement.global, function);
         return null;
     }
 
     @Override
-    public Void visitIfStatement(Statement.If statement) {
+    public Completion visitIfStatement(Statement.If statement) {
         if (isTruthy(evaluate(statement.condition))) {
-            execute(statement.thenBranch);
+            return execute(statement.thenBranch);
         } else if (statement.elseBranch != null) {
-            execute(statement.elseBranch);
+            return execute(statement.elseBranch);
         }
 
         return null;
     }
 
     @Override
-    public Void visitPrintStatement(Statement.Print statement) {
+    public Completion visitPrintStatement(Statement.Print statement) {
         Object value = evaluate(statement.expression);
         System.out.println(stringify(value));
         return null;
     }
 
     @Override
-    public Void visitReturnStatement(Statement.Return statement) {
+    public Completion visitReturnStatement(Statement.Return statement) {
+        if (statement.tailCall) {
+            Expr.Call call = (Expr.Call)statement.value;
+            Object callee = evaluate(call.callee);
+            if (callee instanceof NativeFunction) {
+                returnValue = callNative(call, (NativeFunction)callee);
+                return Completion.RETURN;
+            }
+            return tailCallOf(call, callee);
+        }
+
         Object value = null;
         if (statement.value != null) value = evaluate(statement.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    private Completion tailCallOf(Expr.Call call, Object callee) {
+        // the arguments are left on top of the stack, for the call running
+        // this body to move into its frame and run a TSFunction there
+        List<Expr> args = call.args;
+        int argsBase = pushFrame(args.size());
+        for (int i = 0; i < args.size(); i++) {
+            Object value = evaluate(args.get(i));
+            stack[argsBase + i] = value;
+        }
+        TSCallable function = callable(call, callee);
+        if (function instanceof TSFunction) {
+            tailCallee = (TSFunction)function;
+            return Completion.RETURN;
+        }
+        try {
+            returnValue = function.call(this, stack, argsBase);
+        } finally {
+            popFrame(argsBase);
+        }
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitLetStatement(Statement.Let statement) {
+    public Completion visitLetStatement(Statement.Let statement) {
         Object value = null;
         if (statement.initializer != null) {
             value = evaluate(statement.initializer);
         }
 
-        environment.define(statement.name.lexeme, value);
+        define(statement.slot, statement.global, value);
         return null;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        // a numeric tree is boxed once, at its root
+        if (expr.numeric) return evaluateDouble(expr);
+        if (isComparison(expr.operator.type)
+                && Resolver.isNumeric(expr.left) && Resolver.isNumeric(expr.right)) {
+            return compareDoubles(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
+        if (specialize) return expr.node.execute(expr, left, right);
+        return binary(expr.operator, left, right);
+    }
+
+    private double evaluateDouble(Expr expr) {
+        // The value of an expression the Resolver marked numeric, which is
+        // a double unless evaluating it raises an error. Numeric operands
+        // are computed the same way, so no Double is made for intermediate
+        // results; other operands are evaluated as usual and checked once
+        // both sides are known, raising the same errors as binary().
+        if (expr instanceof Expr.Literal) return (double) ((Expr.Literal)expr).value;
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (Resolver.isNumeric(unary.right)) return -evaluateDouble(unary.right);
+            Object operand = evaluate(unary.right);
+            checkNumberOperand(unary.operator, operand);
+            return -(double)operand;
+        }
+
+        Expr.Binary binary = (Expr.Binary)expr;
+        boolean numericLeft = Resolver.isNumeric(binary.left);
+        boolean numericRight = Resolver.isNumeric(binary.right);
+        double left = numericLeft ? evaluateDouble(binary.left) : 0;
+        Object boxedLeft = numericLeft ? null : evaluate(binary.left);
+        double right = numericRight ? evaluateDouble(binary.right) : 0;
+        Object boxedRight = numericRight ? null : evaluate(binary.right);
+        if (!numericLeft || !numericRight) {
+            if ((!numericLeft && !(boxedLeft instanceof Double))
+                    || (!numericRight && !(boxedRight instanceof Double))) {
+                throw new RuntimeError(binary.operator, binary.operator.type == TokenType.PLUS
+                        ? "Operands must be numbers or strings." : "Operands must be numbers.");
+            }
+            if (!numericLeft) left = (double)boxedLeft;
+            if (!numericRight) right = (double)boxedRight;
+        }
+
+        switch (binary.operator.type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            case SLASH:
+                if (right == 0) throw new RuntimeError(binary.operator, "Zero division error.");
+                return left / right;
+            default: return Math.pow(left, right);
+        }
+    }
+
+    private Object compareDoubles(Expr.Binary expr) {
+        // both sides numeric: neither is boxed
+        double left = evaluateDouble(expr.left);
+        double right = evaluateDouble(expr.right);
         switch (expr.operator.type) {
+            case GREATER_THAN: return left > right;
+            case GREATER_THAN_EQ: return left >= right;
+            case LESS_THAN: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.GREATER_THAN || type == TokenType.GREATER_THAN_EQ
+                || type == TokenType.LESS_THAN || type == TokenType.LESS_THAN_EQ;
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER_THAN:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_THAN_EQ:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS_THAN:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_THAN_EQ:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case NOT_EQUAL:
                 return !isEqual(left, right);
             case COMP_EQUAL:
                 return isEqual(left, right);
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 // If both left/right operands are number, evaluate their sum
@@ -260,19 +612,19 @@ class Interpreter implements Expr.Visitor<Object>, Statement.Visitor<Void> {
                     return (double)left + (double)right;
                 }
                 // If both are strings, concatenate
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (left instanceof CharSequence && right instanceof CharSequence) {
+                    return TSString.concat((CharSequence)left, (CharSequence)right);
                 }
 
-                throw new RuntimeError(expr.operator, "Operands must be numbers or strings.");
+                throw new RuntimeError(operator, "Operands must be numbers or strings.");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
             case CARET:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return Math.pow((double) left, (double) right);
         }
 
@@ -282,24 +634,74 @@ class Interpreter implements Expr.Visitor<Object>, Statement.Visitor<Void> {
     @Override
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
-
-        List<Object> args = new ArrayList<>();
-        for (Expr arg : expr.args) {
-            args.add(evaluate(arg));
+        if (callee instanceof NativeFunction) return callNative(expr, (NativeFunction)callee);
+
+        // The arguments are evaluated straight onto the stack, where a
+        // TSFunction takes them as the first slots of its frame; calls
+        // inside them push their frames above. This method and the frame
+        // loop in call are the only Java frames a script call adds: every
+        // frame more would come off how deep scripts can recurse.
+        List<Expr> args = expr.args;
+        int frameBase = pushFrame(args.size());
+        try {
+            for (int i = 0; i < args.size(); i++) {
+                // evaluated first: a call inside may grow the stack
+                Object value = evaluate(args.get(i));
+                stack[frameBase + i] = value;
+            }
+            TSCallable function = callable(expr, callee);
+            if (function instanceof TSFunction) return call((TSFunction)function, stack, frameBase);
+            return function.call(this, stack, frameBase);
+        } finally {
+            popFrame(frameBase);
         }
+    }
 
-        if (!(callee instanceof TSCallable)) {
-            throw new RuntimeError(expr.bracket, "Can only call functions.");
+    private Object callNative(Expr.Call expr, NativeFunction function) {
+        // A builtin (one whose name the script hasn't rebound) gets its
+        // arguments in hand: there is no frame to push.
+        List<Expr> args = expr.args;
+        if (args.size() > 3) {
+            // more than any builtin takes: evaluated, then refused
+            for (Expr arg : args) evaluate(arg);
+            callable(expr, function);
         }
+        Object a = args.size() > 0 ? evaluate(args.get(0)) : null;
+        Object b = args.size() > 1 ? evaluate(args.get(1)) : null;
+        Object c = args.size() > 2 ? evaluate(args.get(2)) : null;
+        callable(expr, function);
+        try {
+            switch (args.size()) {
+                case 0: return function.call0(this);
+                case 1: return function.call1(this, a);
+                case 2: return function.call2(this, a, b);
+                default: return function.call3(this, a, b, c);
+            }
+        } catch (RuntimeError error) {
+            throw error.at(expr.bracket);
+        }
+    }
 
-        TSCallable function = (TSCallable)callee;
+    static TSCallable callable(Expr.Call expr, Object callee) {
+        // A site almost always calls the same function, so its arity is
+        // checked once: the site remembers the last declaration (or other
+        // callable) that took its number of arguments. Every TSFunction
+        // made from one declaration has the same arity.
+        Object identity = callee instanceof TSFunction ? ((TSFunction)callee).declaration() : callee;
+        if (identity != expr.checked || identity == null) {
+            if (!(callee instanceof TSCallable)) {
+                throw new RuntimeError(expr.bracket, "Can only call functions.");
+            }
 
-        // arity: number of args the functions/operators expects
-        if (args.size() != function.arity()) { 
-            throw new RuntimeError(expr.bracket, "Expected " +
-                                   function.arity() + " arguments but got " +
-                                   args.size() + ".");
+            // arity: number of args the functions/operators expects
+            int arity = ((TSCallable)callee).arity();
+            if (expr.args.size() != arity) {
+                throw new RuntimeError(expr.bracket, "Expected " +
+                                       arity + " arguments but got " +
+                                       expr.args.size() + ".");
+            }
+            expr.checked = identity;
         }
-        return function.call(this, args);
+        return (TSCallable)callee;
     }
 }
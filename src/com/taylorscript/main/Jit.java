@@ -0,0 +1,909 @@
+package com.taylorscript.main;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+class Jit implements Expr.Visitor<Void>, Statement.Visitor<Void> {
+    // -jit: compiles the body of a hot TSFunction into a JVM class, so
+    // that HotSpot optimizes TaylorScript code like Java code. The class
+    // is a hidden class extending CompiledFunction. It is not tied to its
+    // class loader, so it is unloaded once nothing refers to the
+    // TSFunction that holds it.
+    //
+    // Locals are JVM locals. A local that is only ever given numbers (see
+    // findNumericSlots) is a double local, and a numeric expression, which
+    // here includes reading such a local, is computed on primitive doubles
+    // as Interpreter.evaluateDouble does and boxed once. Everything else
+    // works on Objects through the helpers of JitRuntime. Tokens and other
+    // constants are static final fields of the class, so errors are raised
+    // at the same token as in the Interpreter and HotSpot sees them as
+    // constants.
+    //
+    // A tail call of the function itself, made from the same declaration,
+    // stores the arguments into the parameters and jumps back to the start
+    // of the body. A tail call of anything else pushes the arguments on the
+    // Interpreter's stack and returns, leaving the call to the caller's
+    // trampoline (see Interpreter.tailCall).
+
+    static final int THRESHOLD = 1000;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+    private static final String TOKEN_TYPE = "Lcom/taylorscript/main/Token;";
+    private static final String INTERPRETER_TYPE = "Lcom/taylorscript/main/Interpreter;";
+    private static final String FUNCTION_TYPE = "Lcom/taylorscript/main/Statement$Function;";
+    private static final String COMPILED = "com/taylorscript/main/CompiledFunction";
+    private static final String RUNTIME = "com/taylorscript/main/JitRuntime";
+    private static final String PACKAGE = "com/taylorscript/main/";
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    // the constants of the class being defined, read by its <clinit>
+    static Object[] pendingConstants;
+
+    private final ClassFile file;
+    private final String className;
+    private final ClassFile.Code code;
+    private final Statement.Function declaration;
+    private final ClassFile.Label start;
+    private final boolean[] numericSlots;
+    private final int[] locals;  // the JVM local of each slot
+    private final int firstTemp;
+    private int nextTemp;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+
+    // targets of ShakeItOff and Evermore in the innermost loop
+    private ClassFile.Label breakLabel;
+    private ClassFile.Label continueLabel;
+
+    static CompiledFunction compile(Statement.Function function) {
+        // null if the body can't be compiled, which leaves it to the Interpreter
+        try {
+            return new Jit(function).define(function.params.size());
+        } catch (IllegalStateException | ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private Jit(Statement.Function function) {
+        // reading a deferred body parses and resolves it, giving frameSize
+        List<Statement> body = function.body;
+        if (function.frameSize < 0) body.size();
+
+        declaration = function;
+        int arity = function.params.size();
+        numericSlots = findNumericSlots(body, arity, function.frameSize);
+        locals = new int[function.frameSize];
+        // slot 0 goes after this, the interpreter and any argument array
+        int next = arity <= 4 ? 2 : 3;
+        for (int slot = 0; slot < locals.length; slot++) {
+            locals[slot] = next;
+            next += numericSlots[slot] ? 2 : 1;
+        }
+        firstTemp = next;
+
+        className = PACKAGE + "Jit$" + function.name.lexeme;
+        file = new ClassFile(className, COMPILED);
+        if (arity <= 4) {
+            code = file.method(0, "call" + arity, "(" + INTERPRETER_TYPE + OBJECT_TYPE.repeat(arity) + ")" + OBJECT_TYPE);
+        } else {
+            code = file.method(0, "callN", "(" + INTERPRETER_TYPE + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE);
+            for (int i = 0; i < arity; i++) {
+                code.local(ClassFile.ALOAD, 2);
+                code.pushInt(i);
+                code.op(ClassFile.AALOAD, -1);
+                code.local(ClassFile.ASTORE, locals[i]);
+            }
+        }
+        // the verifier wants every local written before it is read
+        for (int slot = arity; slot < locals.length; slot++) {
+            if (numericSlots[slot]) {
+                code.op(ClassFile.DCONST_0, 2);
+                code.local(ClassFile.DSTORE, locals[slot]);
+            } else {
+                code.op(ClassFile.ACONST_NULL, 1);
+                code.local(ClassFile.ASTORE, locals[slot]);
+            }
+        }
+
+        start = code.newLabel();
+        code.mark(start);
+        for (Statement statement : body) compile(statement);
+        code.op(ClassFile.ACONST_NULL, 1);
+        code.op(ClassFile.ARETURN, -1);
+        code.finish();
+    }
+
+    private CompiledFunction define(int arity) throws ReflectiveOperationException {
+        ClassFile.Code init = file.method(0, "<init>", "()V");
+        init.local(ClassFile.ALOAD, 0);
+        init.pushInt(arity);
+        init.invoke(ClassFile.INVOKESPECIAL, COMPILED, "<init>", "(I)V");
+        init.op(ClassFile.RETURN, 0);
+        init.finish();
+
+        ClassFile.Code clinit = file.method(ClassFile.ACC_STATIC, "<clinit>", "()V");
+        clinit.field(ClassFile.GETSTATIC, PACKAGE + "Jit", "pendingConstants", "[" + OBJECT_TYPE);
+        for (int i = 0; i < constants.size(); i++) {
+            String type = constantType(constants.get(i));
+            file.field(ClassFile.ACC_STATIC | ClassFile.ACC_FINAL, "c" + i, type);
+            clinit.op(ClassFile.DUP, 1);
+            clinit.pushInt(i);
+            clinit.op(ClassFile.AALOAD, -1);
+            clinit.type(ClassFile.CHECKCAST, type.substring(1, type.length() - 1));
+            clinit.field(ClassFile.PUTSTATIC, className, "c" + i, type);
+        }
+        clinit.op(ClassFile.POP, -1);
+        clinit.op(ClassFile.RETURN, 0);
+        clinit.finish();
+
+        byte[] bytes = file.toBytes();
+        try {
+            MethodHandles.Lookup lookup;
+            synchronized (Jit.class) {
+                pendingConstants = constants.toArray();
+                try {
+                    lookup = LOOKUP.defineHiddenClass(bytes, true);
+                } finally {
+                    pendingConstants = null;
+                }
+            }
+            return (CompiledFunction)lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean[] findNumericSlots(List<Statement> body, int arity, int frameSize) {
+        // The slots that only ever hold numbers: every Let and = storing to
+        // them stores a numeric value, assuming the slots found so far do
+        // hold numbers, and compound assignments store numbers or fail. A
+        // slot is always written before it is read (see Resolver), and
+        // sibling scopes sharing a slot are all taken into account.
+        // Parameters can be anything.
+        List<Object> stores = new ArrayList<>();
+        for (Statement statement : body) collectStores(statement, stores);
+
+        boolean[] numeric = new boolean[frameSize];
+        for (int slot = arity; slot < frameSize; slot++) numeric[slot] = true;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < stores.size(); i += 2) {
+                int slot = (Integer)stores.get(i);
+                Object value = stores.get(i + 1);
+                if (numeric[slot] && !(value instanceof Expr && isNumeric((Expr)value, numeric))) {
+                    numeric[slot] = false;
+                    changed = true;
+                }
+            }
+        }
+        return numeric;
+    }
+
+    private static void collectStores(Statement statement, List<Object> stores) {
+        // pairs of a local slot and the Expr stored to it, or some other
+        // Object for a value that isn't one
+        if (statement instanceof Statement.Block) {
+            for (Statement inner : ((Statement.Block)statement).statements) collectStores(inner, stores);
+        } else if (statement instanceof Statement.Expression) {
+            collectStores(((Statement.Expression)statement).expression, stores);
+        } else if (statement instanceof Statement.For) {
+            Statement.For loop = (Statement.For)statement;
+            collectStores(loop.initializer, stores);
+            collectStores(loop.condition, stores);
+            collectStores(loop.increment, stores);
+            collectStores(loop.body, stores);
+        } else if (statement instanceof Statement.Function) {
+            Statement.Function function = (Statement.Function)statement;
+            if (function.slot >= 0) Collections.addAll(stores, function.slot, function);
+        } else if (statement instanceof Statement.If) {
+            Statement.If branch = (Statement.If)statement;
+            collectStores(branch.condition, stores);
+            collectStores(branch.thenBranch, stores);
+            collectStores(branch.elseBranch, stores);
+        } else if (statement instanceof Statement.Print) {
+            collectStores(((Statement.Print)statement).expression, stores);
+        } else if (statement instanceof Statement.Return) {
+            collectStores(((Statement.Return)statement).value, stores);
+        } else if (statement instanceof Statement.Let) {
+            Statement.Let let = (Statement.Let)statement;
+            collectStores(let.initializer, stores);
+            // no initializer stores BlankSpace
+            if (let.slot >= 0) Collections.addAll(stores, let.slot, let.initializer != null ? let.initializer : let);
+        } else if (statement instanceof Statement.While) {
+            collectStores(((Statement.While)statement).condition, stores);
+            collectStores(((Statement.While)statement).body, stores);
+        }
+    }
+
+    private static void collectStores(Expr expr, List<Object> stores) {
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            collectStores(assign.value, stores);
+            if (assign.slot >= 0 && assign.equals.type == TokenType.ASSIGN_EQUAL) {
+                Collections.addAll(stores, assign.slot, assign.value);
+            }
+        } else if (expr instanceof Expr.Binary) {
+            collectStores(((Expr.Binary)expr).left, stores);
+            collectStores(((Expr.Binary)expr).right, stores);
+        } else if (expr instanceof Expr.Call) {
+            collectStores(((Expr.Call)expr).callee, stores);
+            for (Expr arg : ((Expr.Call)expr).args) collectStores(arg, stores);
+        } else if (expr instanceof Expr.Grouping) {
+            collectStores(((Expr.Grouping)expr).expression, stores);
+        } else if (expr instanceof Expr.Logical) {
+            collectStores(((Expr.Logical)expr).left, stores);
+            collectStores(((Expr.Logical)expr).right, stores);
+        } else if (expr instanceof Expr.Unary) {
+            collectStores(((Expr.Unary)expr).right, stores);
+        }
+    }
+
+    private static boolean isNumeric(Expr expr, boolean[] numericSlots) {
+        // Resolver.isNumeric, knowing which locals hold numbers
+        if (expr instanceof Expr.Variable) {
+            int slot = ((Expr.Variable)expr).slot;
+            return slot >= 0 && numericSlots[slot];
+        }
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            return assign.equals.type != TokenType.ASSIGN_EQUAL || isNumeric(assign.value, numericSlots);
+        }
+        if (expr instanceof Expr.Grouping) return isNumeric(((Expr.Grouping)expr).expression, numericSlots);
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.operator.type != TokenType.PLUS) return binary.numeric;
+            return isNumeric(binary.left, numericSlots) || isNumeric(binary.right, numericSlots);
+        }
+        return Resolver.isNumeric(expr);
+    }
+
+    private boolean isNumeric(Expr expr) {
+        return isNumeric(expr, numericSlots);
+    }
+
+    private static String constantType(Object value) {
+        if (value instanceof Token) return TOKEN_TYPE;
+        if (value instanceof Statement.Function) return FUNCTION_TYPE;
+        return "Ljava/lang/Double;";
+    }
+
+    private void pushConstant(Object value, String type) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+        code.field(ClassFile.GETSTATIC, className, "c" + index, type);
+    }
+
+    private void pushToken(Token token) {
+        pushConstant(token, TOKEN_TYPE);
+    }
+
+    private int temp(int size) {
+        // a scratch local, free again at the next statement
+        int local = nextTemp;
+        nextTemp += size;
+        return local;
+    }
+
+    private void invokeRuntime(String name, String descriptor) {
+        code.invoke(ClassFile.INVOKESTATIC, RUNTIME, name, descriptor);
+    }
+
+    private void box() {
+        code.invoke(ClassFile.INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+    }
+
+    private void boxBoolean() {
+        code.invoke(ClassFile.INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+    }
+
+    private void compile(Statement statement) {
+        nextTemp = firstTemp;
+        statement.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        // leaves the value on the stack
+        expr.accept(this);
+    }
+
+    private void compileEffect(Expr expr) {
+        if (expr instanceof Expr.Assign) {
+            assign((Expr.Assign)expr, false);
+        } else {
+            compile(expr);
+            code.op(ClassFile.POP, -1);
+        }
+    }
+
+    private void compileDouble(Expr expr) {
+        // expr is numeric (see isNumeric): leaves a double
+        if (expr instanceof Expr.Literal) {
+            code.pushDouble((double)((Expr.Literal)expr).value);
+            return;
+        }
+        if (expr instanceof Expr.Variable) {
+            code.local(ClassFile.DLOAD, locals[((Expr.Variable)expr).slot]);
+            return;
+        }
+        if (expr instanceof Expr.Assign) {
+            assignNumber((Expr.Assign)expr);
+            return;
+        }
+        if (expr instanceof Expr.Grouping) {
+            compileDouble(((Expr.Grouping)expr).expression);
+            return;
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (isNumeric(unary.right)) {
+                compileDouble(unary.right);
+                code.op(ClassFile.DNEG, 0);
+            } else {
+                compile(unary.right);
+                pushToken(unary.operator);
+                invokeRuntime("negate", "(" + OBJECT_TYPE + TOKEN_TYPE + ")D");
+            }
+            return;
+        }
+
+        Expr.Binary binary = (Expr.Binary)expr;
+        boolean numericLeft = isNumeric(binary.left);
+        boolean numericRight = isNumeric(binary.right);
+        if (numericLeft) compileDouble(binary.left); else compile(binary.left);
+        if (numericRight) compileDouble(binary.right); else compile(binary.right);
+
+        // operands are checked once both are evaluated; either raises the
+        // same error
+        String operand = "(" + OBJECT_TYPE + TOKEN_TYPE + ")D";
+        if (!numericLeft && !numericRight) {
+            int right = temp(1);
+            code.local(ClassFile.ASTORE, right);
+            pushToken(binary.operator);
+            invokeRuntime("operand", operand);
+            code.local(ClassFile.ALOAD, right);
+            pushToken(binary.operator);
+            invokeRuntime("operand", operand);
+        } else if (!numericLeft) {
+            int right = temp(2);
+            code.local(ClassFile.DSTORE, right);
+            pushToken(binary.operator);
+            invokeRuntime("operand", operand);
+            code.local(ClassFile.DLOAD, right);
+        } else if (!numericRight) {
+            pushToken(binary.operator);
+            invokeRuntime("operand", operand);
+        }
+
+        switch (binary.operator.type) {
+            case PLUS: code.op(ClassFile.DADD, -2); break;
+            case MINUS: code.op(ClassFile.DSUB, -2); break;
+            case STAR: code.op(ClassFile.DMUL, -2); break;
+            case SLASH: {
+                ClassFile.Label divide = code.newLabel();
+                code.op(ClassFile.DUP2, 2);
+                code.op(ClassFile.DCONST_0, 2);
+                code.op(ClassFile.DCMPL, -3);
+                code.jump(ClassFile.IFNE, divide);
+                pushToken(binary.operator);
+                invokeRuntime("zeroDivision", "(" + TOKEN_TYPE + ")Lcom/taylorscript/main/RuntimeError;");
+                code.op(ClassFile.ATHROW, -1);
+                code.mark(divide);
+                code.op(ClassFile.DDIV, -2);
+                break;
+            }
+            default:
+                code.invoke(ClassFile.INVOKESTATIC, "java/lang/Math", "pow", "(DD)D");
+                break;
+        }
+    }
+
+    private void compileTest(Expr condition, ClassFile.Label ifFalse) {
+        // jumps to ifFalse unless condition is truthy, with nothing left
+        // on the stack either way
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)condition;
+            TokenType type = binary.operator.type;
+            if (isComparison(type) && isNumeric(binary.left) && isNumeric(binary.right)) {
+                compileDouble(binary.left);
+                compileDouble(binary.right);
+                // a NaN operand makes every comparison false
+                switch (type) {
+                    case GREATER_THAN:
+                        code.op(ClassFile.DCMPL, -3);
+                        code.jump(ClassFile.IFLE, ifFalse);
+                        break;
+                    case GREATER_THAN_EQ:
+                        code.op(ClassFile.DCMPL, -3);
+                        code.jump(ClassFile.IFLT, ifFalse);
+                        break;
+                    case LESS_THAN:
+                        code.op(ClassFile.DCMPG, -3);
+                        code.jump(ClassFile.IFGE, ifFalse);
+                        break;
+                    default:
+                        code.op(ClassFile.DCMPG, -3);
+                        code.jump(ClassFile.IFGT, ifFalse);
+                        break;
+                }
+                return;
+            }
+            if (isComparison(type) || type == TokenType.COMP_EQUAL || type == TokenType.NOT_EQUAL) {
+                compileBoolean(binary);
+                code.jump(type == TokenType.NOT_EQUAL ? ClassFile.IFNE : ClassFile.IFEQ, ifFalse);
+                return;
+            }
+        }
+        if (condition instanceof Expr.Logical
+                && ((Expr.Logical)condition).operator.type == TokenType.LOGICAL_AND) {
+            compileTest(((Expr.Logical)condition).left, ifFalse);
+            compileTest(((Expr.Logical)condition).right, ifFalse);
+            return;
+        }
+        if (condition instanceof Expr.Unary && ((Expr.Unary)condition).operator.type == TokenType.LOGICAL_NOT) {
+            compile(((Expr.Unary)condition).right);
+            invokeRuntime("isTruthy", "(" + OBJECT_TYPE + ")Z");
+            code.jump(ClassFile.IFNE, ifFalse);
+            return;
+        }
+
+        compile(condition);
+        invokeRuntime("isTruthy", "(" + OBJECT_TYPE + ")Z");
+        code.jump(ClassFile.IFEQ, ifFalse);
+    }
+
+    private void compileBoolean(Expr.Binary binary) {
+        // a comparison or (in)equality of Objects, as an int; NOT_EQUAL
+        // leaves whether the operands are equal
+        compile(binary.left);
+        compile(binary.right);
+        String name;
+        switch (binary.operator.type) {
+            case GREATER_THAN: name = "greater"; break;
+            case GREATER_THAN_EQ: name = "greaterEqual"; break;
+            case LESS_THAN: name = "less"; break;
+            case LESS_THAN_EQ: name = "lessEqual"; break;
+            default:
+                invokeRuntime("isEqual", "(" + OBJECT_TYPE + OBJECT_TYPE + ")Z");
+                return;
+        }
+        pushToken(binary.operator);
+        invokeRuntime(name, "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + ")Z");
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.GREATER_THAN || type == TokenType.GREATER_THAN_EQ
+                || type == TokenType.LESS_THAN || type == TokenType.LESS_THAN_EQ;
+    }
+
+    private void load(Token name, int slot, int global) {
+        if (slot >= 0 && numericSlots[slot]) {
+            code.local(ClassFile.DLOAD, locals[slot]);
+            box();
+            return;
+        }
+        if (slot >= 0) {
+            code.local(ClassFile.ALOAD, locals[slot]);
+            return;
+        }
+        code.local(ClassFile.ALOAD, 1);
+        pushToken(name);
+        code.pushInt(global);
+        invokeRuntime("global", "(" + INTERPRETER_TYPE + TOKEN_TYPE + "I)" + OBJECT_TYPE);
+    }
+
+    private void define(int slot, int global) {
+        // pops the value
+        if (slot >= 0) {
+            code.local(ClassFile.ASTORE, locals[slot]);
+            return;
+        }
+        code.local(ClassFile.ALOAD, 1);
+        code.pushInt(global);
+        invokeRuntime("defineGlobal", "(" + OBJECT_TYPE + INTERPRETER_TYPE + "I)V");
+    }
+
+    private void store(Expr.Assign expr) {
+        // pops the value
+        if (expr.slot >= 0) {
+            code.local(ClassFile.ASTORE, locals[expr.slot]);
+            return;
+        }
+        code.local(ClassFile.ALOAD, 1);
+        pushToken(expr.name);
+        code.pushInt(expr.global);
+        invokeRuntime("assignGlobal", "(" + OBJECT_TYPE + INTERPRETER_TYPE + TOKEN_TYPE + "I)V");
+    }
+
+    private void assignNumber(Expr.Assign expr) {
+        // an assignment to a double local, leaving the value as a double
+        int local = locals[expr.slot];
+        if (expr.equals.type == TokenType.ASSIGN_EQUAL) {
+            compileDouble(expr.value);
+        } else {
+            // the value, then the variable, as the Interpreter reads them
+            if (isNumeric(expr.value)) {
+                compileDouble(expr.value);
+            } else {
+                compile(expr.value);
+                pushToken(expr.equals);
+                invokeRuntime("operand", "(" + OBJECT_TYPE + TOKEN_TYPE + ")D");
+            }
+            int value = temp(2);
+            code.local(ClassFile.DSTORE, value);
+            code.local(ClassFile.DLOAD, local);
+            code.local(ClassFile.DLOAD, value);
+            arithmetic(expr.equals.type);
+        }
+        code.op(ClassFile.DUP2, 2);
+        code.local(ClassFile.DSTORE, local);
+    }
+
+    private void arithmetic(TokenType compound) {
+        switch (compound) {
+            case PLUS_EQ: code.op(ClassFile.DADD, -2); break;
+            case MINUS_EQ: code.op(ClassFile.DSUB, -2); break;
+            case STAR_EQ: code.op(ClassFile.DMUL, -2); break;
+            default: code.op(ClassFile.DDIV, -2); break;
+        }
+    }
+
+    private void assign(Expr.Assign expr, boolean keepValue) {
+        if (expr.slot >= 0 && numericSlots[expr.slot]) {
+            assignNumber(expr);
+            if (keepValue) {
+                box();
+            } else {
+                code.op(ClassFile.POP2, -2);
+            }
+            return;
+        }
+
+        if (expr.equals.type == TokenType.ASSIGN_EQUAL) {
+            compile(expr.value);
+        } else if (Resolver.isNumeric(expr.value)) {
+            // the value, then the variable, as the Interpreter reads them
+            compileDouble(expr.value);
+            int value = temp(2);
+            code.local(ClassFile.DSTORE, value);
+            load(expr.name, expr.slot, expr.global);
+            pushToken(expr.equals);
+            invokeRuntime("operand", "(" + OBJECT_TYPE + TOKEN_TYPE + ")D");
+            code.local(ClassFile.DLOAD, value);
+            arithmetic(expr.equals.type);
+            box();
+        } else {
+            compile(expr.value);
+            int value = temp(1);
+            code.local(ClassFile.ASTORE, value);
+            load(expr.name, expr.slot, expr.global);
+            code.local(ClassFile.ALOAD, value);
+            pushToken(expr.equals);
+            invokeRuntime("compound", "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE);
+        }
+        if (keepValue) code.op(ClassFile.DUP, 1);
+        store(expr);
+    }
+
+    @Override
+    public Void visitBlockStatement(Statement.Block statement) {
+        for (Statement inner : statement.statements) compile(inner);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStatement(Statement.Break statement) {
+        code.jump(ClassFile.GOTO, breakLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStatement(Statement.Continue statement) {
+        code.jump(ClassFile.GOTO, continueLabel);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStatement(Statement.Expression statement) {
+        compileEffect(statement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStatement(Statement.For statement) {
+        if (statement.initializer != null) compile(statement.initializer);
+
+        ClassFile.Label start = code.newLabel();
+        ClassFile.Label next = code.newLabel();
+        ClassFile.Label end = code.newLabel();
+        code.mark(start);
+        if (statement.condition != null) compileTest(statement.condition, end);
+        compileLoopBody(statement.body, end, next);
+        code.mark(next);
+        if (statement.increment != null) {
+            nextTemp = firstTemp;
+            compileEffect(statement.increment);
+        }
+        code.jump(ClassFile.GOTO, start);
+        code.mark(end);
+        return null;
+    }
+
+    private void compileLoopBody(Statement body, ClassFile.Label end, ClassFile.Label next) {
+        ClassFile.Label enclosingBreak = breakLabel;
+        ClassFile.Label enclosingContinue = continueLabel;
+        breakLabel = end;
+        continueLabel = next;
+        compile(body);
+        breakLabel = enclosingBreak;
+        continueLabel = enclosingContinue;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Statement.Function statement) {
+        pushConstant(statement, FUNCTION_TYPE);
+        invokeRuntime("function", "(" + FUNCTION_TYPE + ")" + OBJECT_TYPE);
+        define(statement.slot, statement.global);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(Statement.If statement) {
+        ClassFile.Label elseBranch = code.newLabel();
+        compileTest(statement.condition, elseBranch);
+        compile(statement.thenBranch);
+        if (statement.elseBranch == null) {
+            code.mark(elseBranch);
+            return null;
+        }
+
+        ClassFile.Label end = code.newLabel();
+        code.jump(ClassFile.GOTO, end);
+        code.mark(elseBranch);
+        compile(statement.elseBranch);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStatement(Statement.Print statement) {
+        compile(statement.expression);
+        invokeRuntime("print", "(" + OBJECT_TYPE + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStatement(Statement.Return statement) {
+        Expr.Call call = statement.tailCall ? (Expr.Call)statement.value : null;
+        if (call != null) {
+            tailCall(call);
+            return null;
+        }
+
+        if (statement.value != null) {
+            compile(statement.value);
+        } else {
+            code.op(ClassFile.ACONST_NULL, 1);
+        }
+        code.op(ClassFile.ARETURN, -1);
+        return null;
+    }
+
+    private void tailCall(Expr.Call call) {
+        // the callee and arguments are evaluated as for any call; then, if
+        // the callee is this function, they become the parameters again
+        int count = call.args.size();
+        int callee = temp(1);
+        compile(call.callee);
+        code.local(ClassFile.ASTORE, callee);
+        int firstArg = temp(count);
+        for (int i = 0; i < count; i++) {
+            compile(call.args.get(i));
+            code.local(ClassFile.ASTORE, firstArg + i);
+        }
+
+        if (count == declaration.params.size()) {
+            ClassFile.Label other = code.newLabel();
+            code.local(ClassFile.ALOAD, callee);
+            pushConstant(declaration, FUNCTION_TYPE);
+            invokeRuntime("isCallOf", "(" + OBJECT_TYPE + FUNCTION_TYPE + ")Z");
+            code.jump(ClassFile.IFEQ, other);
+            for (int i = 0; i < count; i++) {
+                code.local(ClassFile.ALOAD, firstArg + i);
+                code.local(ClassFile.ASTORE, locals[i]);
+            }
+            code.jump(ClassFile.GOTO, start);
+            code.mark(other);
+        }
+
+        for (int i = 0; i < count; i++) {
+            code.local(ClassFile.ALOAD, 1);
+            code.local(ClassFile.ALOAD, firstArg + i);
+            code.invoke(ClassFile.INVOKEVIRTUAL, PACKAGE + "Interpreter", "pushArgument", "(" + OBJECT_TYPE + ")V");
+        }
+        code.local(ClassFile.ALOAD, 1);
+        code.local(ClassFile.ALOAD, callee);
+        pushToken(call.bracket);
+        code.pushInt(count);
+        invokeRuntime("tailCall", "(" + INTERPRETER_TYPE + OBJECT_TYPE + TOKEN_TYPE + "I)" + OBJECT_TYPE);
+        code.op(ClassFile.ARETURN, -1);
+    }
+
+    @Override
+    public Void visitLetStatement(Statement.Let statement) {
+        if (statement.slot >= 0 && numericSlots[statement.slot]) {
+            compileDouble(statement.initializer);
+            code.local(ClassFile.DSTORE, locals[statement.slot]);
+            return null;
+        }
+        if (statement.initializer != null) {
+            compile(statement.initializer);
+        } else {
+            code.op(ClassFile.ACONST_NULL, 1);
+        }
+        define(statement.slot, statement.global);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(Statement.While statement) {
+        ClassFile.Label start = code.newLabel();
+        ClassFile.Label end = code.newLabel();
+        code.mark(start);
+        compileTest(statement.condition, end);
+        compileLoopBody(statement.body, end, start);
+        code.jump(ClassFile.GOTO, start);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        assign(expr, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (isNumeric(expr)) {
+            compileDouble(expr);
+            box();
+            return null;
+        }
+
+        TokenType type = expr.operator.type;
+        if (type == TokenType.PLUS) {
+            compile(expr.left);
+            compile(expr.right);
+            pushToken(expr.operator);
+            invokeRuntime("add", "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE);
+            return null;
+        }
+        if (type == TokenType.COMP_EQUAL || type == TokenType.NOT_EQUAL
+                || !isNumeric(expr.left) || !isNumeric(expr.right)) {
+            compileBoolean(expr);
+            if (type == TokenType.NOT_EQUAL) {
+                code.op(ClassFile.ICONST_1, 1);
+                code.op(ClassFile.IXOR, -1);
+            }
+            boxBoolean();
+            return null;
+        }
+
+        // a comparison of two numbers
+        ClassFile.Label isFalse = code.newLabel();
+        ClassFile.Label end = code.newLabel();
+        compileTest(expr, isFalse);
+        code.field(ClassFile.GETSTATIC, "java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;");
+        code.jump(ClassFile.GOTO, end);
+        code.mark(isFalse);
+        code.field(ClassFile.GETSTATIC, "java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int count = expr.args.size();
+        code.local(ClassFile.ALOAD, 1);
+        compile(expr.callee);
+        pushToken(expr.bracket);
+        if (count <= 4) {
+            for (Expr arg : expr.args) compile(arg);
+            invokeRuntime("call" + count, "(" + INTERPRETER_TYPE + OBJECT_TYPE + TOKEN_TYPE
+                    + OBJECT_TYPE.repeat(count) + ")" + OBJECT_TYPE);
+            return null;
+        }
+
+        code.pushInt(count);
+        code.type(ClassFile.ANEWARRAY, OBJECT);
+        for (int i = 0; i < count; i++) {
+            code.op(ClassFile.DUP, 1);
+            code.pushInt(i);
+            compile(expr.args.get(i));
+            code.op(ClassFile.AASTORE, -3);
+        }
+        invokeRuntime("callN", "(" + INTERPRETER_TYPE + OBJECT_TYPE + TOKEN_TYPE + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value == null) {
+            code.op(ClassFile.ACONST_NULL, 1);
+        } else if (value instanceof Boolean) {
+            code.field(ClassFile.GETSTATIC, "java/lang/Boolean", (boolean)value ? "TRUE" : "FALSE",
+                    "Ljava/lang/Boolean;");
+        } else if (value instanceof String) {
+            code.pushString((String)value);
+        } else {
+            // the literal's own Double, as the Interpreter returns it
+            pushConstant(value, "Ljava/lang/Double;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        // the left operand is the value unless the right one is needed
+        ClassFile.Label end = code.newLabel();
+        compile(expr.left);
+        code.op(ClassFile.DUP, 1);
+        invokeRuntime("isTruthy", "(" + OBJECT_TYPE + ")Z");
+        code.jump(expr.operator.type == TokenType.LOGICAL_OR ? ClassFile.IFNE : ClassFile.IFEQ, end);
+        code.op(ClassFile.POP, -1);
+        compile(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.numeric) {
+            compileDouble(expr);
+            box();
+            return null;
+        }
+
+        compile(expr.right);
+        if (expr.operator.type == TokenType.LOGICAL_NOT) {
+            invokeRuntime("isTruthy", "(" + OBJECT_TYPE + ")Z");
+            code.op(ClassFile.ICONST_1, 1);
+            code.op(ClassFile.IXOR, -1);
+            boxBoolean();
+        } else {
+            pushToken(expr.operator);
+            invokeRuntime("negate", "(" + OBJECT_TYPE + TOKEN_TYPE + ")D");
+            box();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        load(expr.name, expr.slot, expr.global);
+        return null;
+    }
+}
@@ -0,0 +1,215 @@
+package com.taylorscript.main;
+
+final class JitRuntime {
+    // What code compiled by the Jit calls for anything beyond arithmetic
+    // on doubles. Each helper does what the Interpreter does for the same
+    // node, raising the same RuntimeError at the same token; they are
+    // small enough for HotSpot to inline into the compiled function.
+
+    static Object global(Interpreter interpreter, Token name, int slot) {
+        return interpreter.globals.get(name, slot);
+    }
+
+    static void assignGlobal(Object value, Interpreter interpreter, Token name, int slot) {
+        interpreter.globals.assign(name, slot, value);
+    }
+
+    static void defineGlobal(Object value, Interpreter interpreter, int slot) {
+        interpreter.globals.define(slot, value);
+    }
+
+    static Object function(Statement.Function declaration) {
+        return new TSFunction(declaration);
+    }
+
+    static double operand(Object value, Token operator) {
+        // an operand of arithmetic that wasn't known to be a number
+        if (value instanceof Double) return (double)value;
+        throw new RuntimeError(operator, operator.type == TokenType.PLUS
+                ? "Operands must be numbers or strings." : "Operands must be numbers.");
+    }
+
+    static double negate(Object value, Token operator) {
+        if (value instanceof Double) return -(double)value;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static RuntimeError zeroDivision(Token operator) {
+        return new RuntimeError(operator, "Zero division error.");
+    }
+
+    static Object compound(Object current, Object value, Token equals) {
+        // current op= value, where value wasn't known to be a number
+        Interpreter.checkNumberOperands(equals, current, value);
+        double left = (double)current;
+        double right = (double)value;
+        switch (equals.type) {
+            case PLUS_EQ: return left + right;
+            case MINUS_EQ: return left - right;
+            case STAR_EQ: return left * right;
+            default: return left / right;
+        }
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+        if (left instanceof CharSequence && right instanceof CharSequence) {
+            return TSString.concat((CharSequence)left, (CharSequence)right);
+        }
+        throw new RuntimeError(operator, "Operands must be numbers or strings.");
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static boolean isTruthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    static boolean isEqual(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static boolean isCallOf(Object callee, Statement.Function declaration) {
+        // a self tail call: every TSFunction of a declaration runs its body
+        return callee instanceof TSFunction && ((TSFunction)callee).declaration() == declaration;
+    }
+
+    // Calls. A compiled callee with the right arity is called directly,
+    // anything else through its TSCallable fast path, which puts the
+    // arguments on the Interpreter's stack unless it is a NativeFunction;
+    // neither allocates. A NativeFunction's error is reported at the call.
+    // A compiled callee that ended in a tail call returns before making
+    // it, so the call is made here (see Interpreter.finishCall).
+
+    static Object call0(Interpreter interpreter, Object callee, Token bracket) {
+        if (callee instanceof TSFunction) {
+            CompiledFunction compiled = ((TSFunction)callee).compiledBody();
+            if (compiled != null && compiled.arity() == 0) {
+                return interpreter.finishCall(compiled.call0(interpreter));
+            }
+        }
+        try {
+            return callable(callee, bracket, 0).call0(interpreter);
+        } catch (RuntimeError error) {
+            throw error.at(bracket);
+        }
+    }
+
+    static Object call1(Interpreter interpreter, Object callee, Token bracket, Object a) {
+        if (callee instanceof TSFunction) {
+            CompiledFunction compiled = ((TSFunction)callee).compiledBody();
+            if (compiled != null && compiled.arity() == 1) {
+                return interpreter.finishCall(compiled.call1(interpreter, a));
+            }
+        }
+        try {
+            return callable(callee, bracket, 1).call1(interpreter, a);
+        } catch (RuntimeError error) {
+            throw error.at(bracket);
+        }
+    }
+
+    static Object call2(Interpreter interpreter, Object callee, Token bracket, Object a, Object b) {
+        if (callee instanceof TSFunction) {
+            CompiledFunction compiled = ((TSFunction)callee).compiledBody();
+            if (compiled != null && compiled.arity() == 2) {
+                return interpreter.finishCall(compiled.call2(interpreter, a, b));
+            }
+        }
+        try {
+            return callable(callee, bracket, 2).call2(interpreter, a, b);
+        } catch (RuntimeError error) {
+            throw error.at(bracket);
+        }
+    }
+
+    static Object call3(Interpreter interpreter, Object callee, Token bracket, Object a, Object b, Object c) {
+        if (callee instanceof TSFunction) {
+            CompiledFunction compiled = ((TSFunction)callee).compiledBody();
+            if (compiled != null && compiled.arity() == 3) {
+                return interpreter.finishCall(compiled.call3(interpreter, a, b, c));
+            }
+        }
+        try {
+            return callable(callee, bracket, 3).call3(interpreter, a, b, c);
+        } catch (RuntimeError error) {
+            throw error.at(bracket);
+        }
+    }
+
+    static Object call4(Interpreter interpreter, Object callee, Token bracket,
+                        Object a, Object b, Object c, Object d) {
+        if (callee instanceof TSFunction) {
+            CompiledFunction compiled = ((TSFunction)callee).compiledBody();
+            if (compiled != null && compiled.arity() == 4) {
+                return interpreter.finishCall(compiled.call4(interpreter, a, b, c, d));
+            }
+        }
+        try {
+            return callable(callee, bracket, 4).call4(interpreter, a, b, c, d);
+        } catch (RuntimeError error) {
+            throw error.at(bracket);
+        }
+    }
+
+    static Object callN(Interpreter interpreter, Object callee, Token bracket, Object[] args) {
+        if (callee instanceof TSFunction) {
+            CompiledFunction compiled = ((TSFunction)callee).compiledBody();
+            if (compiled != null && compiled.arity() == args.length) {
+                return interpreter.finishCall(compiled.callN(interpreter, args));
+            }
+        }
+        try {
+            return callable(callee, bracket, args.length).call(interpreter, args, 0);
+        } catch (RuntimeError error) {
+            throw error.at(bracket);
+        }
+    }
+
+    static Object tailCall(Interpreter interpreter, Object callee, Token bracket, int count) {
+        // the arguments are on top of the Interpreter's stack
+        try {
+            return interpreter.tailCall(callable(callee, bracket, count), count);
+        } catch (RuntimeError error) {
+            throw error.at(bracket);
+        }
+    }
+
+    private static TSCallable callable(Object callee, Token bracket, int count) {
+        if (!(callee instanceof TSCallable)) {
+            throw new RuntimeError(bracket, "Can only call functions.");
+        }
+        TSCallable function = (TSCallable)callee;
+        if (count != function.arity()) {
+            throw new RuntimeError(bracket, "Expected " +
+                                   function.arity() + " arguments but got " +
+                                   count + ".");
+        }
+        return function;
+    }
+
+    private JitRuntime() {
+    }
+}
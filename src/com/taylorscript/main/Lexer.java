@@ -1,64 +1,60 @@
 package com.taylorscript.main;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.Reader;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.taylorscript.main.TokenType.*;
 import static com.taylorscript.main.TokenType.VAR;
 
 public class Lexer {
-    private String source;
+    private final Source source;
     private final List<Token> tokens = new ArrayList<>();
+    private int nextPending = 0;
+    private TokenArena arena;
     private int start = 0;
     private int current = 0;
     private int lineNumber = 1;
-    private int prevStart;
-    private int prevCurrent;
-    private int prevLineNumber;
-    private String prevSource;
-    private static final Map<String, TokenType> keywords;
     private boolean isInTailorCall = false;
+    private boolean hadError = false;
+    private boolean isUnterminated = false;
 
-    static {
-        keywords = new HashMap<>();
-        keywords.put("Define", FUNC);
-        keywords.put("Mine", INPUT);
-        keywords.put("When", IF);
-        keywords.put("Thats", ELSE);
-        keywords.put("Then", ELIF);
-        keywords.put("AllTooWhile", LOOP);
-        keywords.put("BlankSpace", NIL);
-        keywords.put("The1", TRUE);
-        keywords.put("The0", FALSE);
-        keywords.put("SpeakNow", PRINT);
-        keywords.put("BackTo", RETURN);
-        keywords.put("Evermore", CONTINUE);
-        keywords.put("Clean", CLEAR);
-        keywords.put("Dear", SWITCH);
-        keywords.put("John", CASE);
-        keywords.put("Closure", DEFAULT);
-        keywords.put("Let", VAR);
-        keywords.put("Fear", TRY);
-        keywords.put("Less", CATCH);
-        keywords.put("Number_Style", NUMSTYLE);
-        keywords.put("Str_Style", STRSTYLE);
-        keywords.put("Bool_Style", BOOLSTYLE);
-        keywords.put("Number", NUMSTYLE);
-        keywords.put("Str", STRSTYLE);
-        keywords.put("Bool", BOOLSTYLE);
-    }
+    private final Includes includes = new Includes();
+
+    // When lexing a fragment for the cache, nested includes are only recorded
+    private boolean isFragment = false;
+    private final List<Integer> includeAt = new ArrayList<>();
+    private final List<Integer> includeLines = new ArrayList<>();
+    private final List<String> includeNames = new ArrayList<>();
+
+    // exact powers of ten, for the number fast path
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_FAST_DIGITS = 15;
 
     Lexer(String source) {
+        this.source = Source.of(source);
+    }
+
+    Lexer(Source source) {
         this.source = source;
     }
 
+    Lexer(String source, int lineNumber) {
+        // for lexing a piece of a larger text that starts at lineNumber
+        this.source = Source.of(source);
+        this.lineNumber = lineNumber;
+    }
+
+    Lexer(Reader reader) {
+        // Streaming mode: tokens are pulled one at a time with nextToken()
+        this.source = Source.of(reader);
+    }
+
     List<Token> scanTokens() throws IOException {
         while (!isAtEnd()) {
             start = current;
@@ -69,6 +65,70 @@ public class Lexer {
         return tokens;
     }
 
+    TokenArena scanArena() throws IOException {
+        // Same as scanTokens() but into packed storage, no per-token objects
+        arena = new TokenArena(source);
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+
+        arena.add(EOF, current, 0, lineNumber, null);
+        return arena;
+    }
+
+    FragmentCache.Fragment scanFragment(long modified, long size, byte[] hash) throws IOException {
+        // Lexes a .lor fragment on its own, recording where nested
+        // fragments are included so the result can be cached and spliced
+        isFragment = true;
+        arena = new TokenArena(source);
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+
+        int[] at = new int[includeAt.size()];
+        int[] lines = new int[includeLines.size()];
+        for (int i = 0; i < at.length; i++) {
+            at[i] = includeAt.get(i);
+            lines[i] = includeLines.get(i);
+        }
+        return new FragmentCache.Fragment(arena, at, lines,
+                includeNames.toArray(new String[0]), modified, size, hash);
+    }
+
+    int lineNumber() {
+        return lineNumber;
+    }
+
+    Includes includes() {
+        return includes;
+    }
+
+    boolean hadError() {
+        return hadError;
+    }
+
+    boolean isUnterminated() {
+        // the source ended inside a string or multiline comment
+        return isUnterminated;
+    }
+
+    Token nextToken() throws IOException {
+        // pulls the next token, scanning only as much source as needed
+        while (nextPending == tokens.size()) {
+            tokens.clear();
+            nextPending = 0;
+            if (isAtEnd()) {
+                return new Token(EOF, "", null, lineNumber);
+            }
+            start = current;
+            source.release(start);
+            scanToken();
+        }
+        return tokens.get(nextPending++);
+    }
+
     private void scanToken() throws IOException {
         // parse individual token
         char c = advance();
@@ -102,20 +162,17 @@ public class Lexer {
             case '-':
                 if (matchNextChar('-'))
                     // check if next char is '-'; '--' indicates start of comment
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    current = source.indexOf('\n', current);
                 else if (matchNextChar('*')) {
                     // '-*' starts a multiline comment and ends with '*-'
-                    boolean isInComment = true;
-                    while (isInComment) {
-                        if (peek() == '\n') this.lineNumber++;
-                        if (peek() == '*' && peekNext() == '-') {
-                            advance(); isInComment = false;
-                        }
-                        if (peek() == '\0') {
-                            TaylorScript.error(lineNumber, "Unterminated multiline comment");
-                            break;
-                        }
-                        advance();
+                    int end = source.indexOf('*', '-', current);
+                    lineNumber += source.countLines(current, end);
+                    current = end;
+                    if (isAtEnd()) {
+                        isUnterminated = true;
+                        error("Unterminated multiline comment");
+                    } else {
+                        current += 2;
                     }
                 } else if (matchNextChar('=')) {
                     addToken(MINUS_EQ);
@@ -128,6 +185,7 @@ public class Lexer {
             case ' ':
             case '\r':
             case '\t':
+                current = source.skipBlanks(current);
                 break;
 
             case '\n':
@@ -143,7 +201,7 @@ public class Lexer {
                     advance();
                 }
                 else if (isAlpha(c)) identifier();
-                else TaylorScript.error(lineNumber, "Unexpected character.");
+                else error("Unexpected character.");
                 break;
         }
     }
@@ -152,28 +210,99 @@ public class Lexer {
         while (isAlphaNumeric(peek())) {
             advance();
         }
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) {
-            type = IDENT;
+        addToken(keywordType());
+    }
+
+    private TokenType keywordType() {
+        // matches keywords on the scanned range without building a String
+        switch (source.charAt(start)) {
+            case 'A':
+                if (isKeyword("AllTooWhile")) return LOOP;
+                break;
+            case 'B':
+                if (isKeyword("BlankSpace")) return NIL;
+                if (isKeyword("BackTo")) return RETURN;
+                if (isKeyword("Bool_Style") || isKeyword("Bool")) return BOOLSTYLE;
+                break;
+            case 'C':
+                if (isKeyword("Clean")) return CLEAR;
+                if (isKeyword("Closure")) return DEFAULT;
+                break;
+            case 'D':
+                if (isKeyword("Define")) return FUNC;
+                if (isKeyword("Dear")) return SWITCH;
+                break;
+            case 'E':
+                if (isKeyword("Evermore")) return CONTINUE;
+                break;
+            case 'F':
+                if (isKeyword("Fear")) return TRY;
+                break;
+            case 'J':
+                if (isKeyword("John")) return CASE;
+                break;
+            case 'L':
+                if (isKeyword("Let")) return VAR;
+                if (isKeyword("Less")) return CATCH;
+                break;
+            case 'M':
+                if (isKeyword("Mine")) return INPUT;
+                break;
+            case 'N':
+                if (isKeyword("Number_Style") || isKeyword("Number")) return NUMSTYLE;
+                break;
+            case 'S':
+                if (isKeyword("SpeakNow")) return PRINT;
+                if (isKeyword("ShakeItOff")) return BREAK;
+                if (isKeyword("Str_Style") || isKeyword("Str")) return STRSTYLE;
+                break;
+            case 'T':
+                if (isKeyword("Thats")) return ELSE;
+                if (isKeyword("Then")) return ELIF;
+                if (isKeyword("The1")) return TRUE;
+                if (isKeyword("The0")) return FALSE;
+                break;
+            case 'W':
+                if (isKeyword("When")) return IF;
+                break;
+        }
+        return IDENT;
+    }
+
+    private boolean isKeyword(String keyword) {
+        // first char was already matched by keywordType()
+        if (current - start != keyword.length()) return false;
+        for (int i = 1; i < keyword.length(); i++) {
+            if (source.charAt(start + i) != keyword.charAt(i)) return false;
         }
-        addToken(type);
+        return true;
     }
 
     private void number() {
+        // accumulate the digits directly; exact whenever the mantissa and
+        // the power of ten both fit in a double without rounding
+        long mantissa = source.charAt(start) - '0';
+        int digits = 1;
+        int fractionDigits = 0;
         while (isDigit(peek())) {
-            advance();
+            mantissa = mantissa * 10 + (advance() - '0');
+            digits++;
         }
 
         if (peek() == '.' && isDigit(peekNext())) {
             advance();
             while (isDigit(peek())) {
-                advance();
+                mantissa = mantissa * 10 + (advance() - '0');
+                digits++;
+                fractionDigits++;
             }
         }
 
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        if (digits <= MAX_FAST_DIGITS) {
+            addNumber(mantissa / POWERS_OF_TEN[fractionDigits]);
+        } else {
+            addNumber(Double.parseDouble(source.substring(start, current)));
+        }
     }
 
     private boolean isTailorCall() {
@@ -184,31 +313,17 @@ public class Lexer {
             advance();
             t++;
         }
-        if (isAtEnd() || (peekNext() != '"' && source.charAt(current) != '[')) {
-            TaylorScript.error(lineNumber, "Tailor keyword cannot be used as identifier.");
+        if (isAtEnd() || (peekNext() != '"' && peek() != '[')) {
+            error("Tailor keyword cannot be used as identifier.");
         }
         return true;
     }
 
-    private void parseTailorFile(String tailorFilePath) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(tailorFilePath));
-        prevSource = source;
-        prevStart = start;
-        prevCurrent = current;
-        prevLineNumber = lineNumber;
-        source = new String(bytes, Charset.defaultCharset());
-        start = current = 0;
-        lineNumber = 1;
-        while (!isAtEnd()) {
-            start = current;
-            scanToken();
-        }
-    }
-
     private void string() throws IOException {
         consumeString();
         if (isAtEnd()) {
-            TaylorScript.error(lineNumber, "Unterminated string.");
+            isUnterminated = true;
+            error("Unterminated string.");
             return;
         }
         advance();
@@ -219,34 +334,52 @@ public class Lexer {
             isInTailorCall = false;
             advance();
 
-            if (!new File(value + ".lor").isFile()) {
-                TaylorScript.error(lineNumber, "Fragment code doesn't exist.");
-                return;
+            if (isFragment) {
+                includeAt.add(arena.size());
+                includeLines.add(lineNumber);
+                includeNames.add(value);
+            } else {
+                include(value, lineNumber);
             }
-
-            parseTailorFile(value + ".lor");
-            revertState();
         } else {
             addToken(STRING, value);
         }
     }
 
-    private void revertState() {
-        source = prevSource;
-        start = prevStart;
-        current = prevCurrent;
-        lineNumber = prevLineNumber;
+    private void include(String name, int line) throws IOException {
+        // Splices the tokens of fragment name.lor (and its own includes) in place
+        Path path = includes.enter(name, line);
+        if (path == null) return;
+
+        FragmentCache.Fragment fragment = FragmentCache.shared.get(path);
+        includes.lexed(path, fragment.hash);
+        int from = 0;
+        for (int i = 0; i < fragment.includes.length; i++) {
+            splice(fragment.tokens, from, fragment.includeAt[i]);
+            from = fragment.includeAt[i];
+            include(fragment.includes[i], fragment.includeLines[i]);
+        }
+        splice(fragment.tokens, from, fragment.tokens.size());
+        includes.exit();
     }
 
-    private void consumeString() {
-        while (peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') {
-                lineNumber++;
-            }
-            advance();
+    private void splice(TokenArena fragment, int from, int to) {
+        if (arena != null) {
+            arena.append(fragment, from, to);
+            arena.useSource(source);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            tokens.add(fragment.get(i));
         }
     }
 
+    private void consumeString() {
+        int end = source.indexOf('"', current);
+        lineNumber += source.countLines(current, end);
+        current = end;
+    }
+
     private boolean matchNextChar(char expected) {
         // this method peeks and advance at the same time
         if (isAtEnd()) return false;
@@ -265,7 +398,7 @@ public class Lexer {
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) {
+        if (source.isAtEnd(current + 1)) {
             return '\0';
         }
         return source.charAt(current + 1);
@@ -286,7 +419,7 @@ public class Lexer {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return source.isAtEnd(current);
     }
 
     private char advance() {
@@ -294,12 +427,33 @@ public class Lexer {
         return source.charAt(current - 1);
     }
 
+    private void error(String message) {
+        error(lineNumber, message);
+    }
+
+    private void error(int line, String message) {
+        hadError = true;
+        TaylorScript.error(line, message);
+    }
+
+    private void addNumber(double value) {
+        if (arena != null) {
+            arena.addNumber(start, current - start, lineNumber, value);
+            return;
+        }
+        addToken(NUMBER, value);
+    }
+
     private void addToken(TokenType type) {
         addToken(type, null);
     }
 
     private void addToken(TokenType type, Object literal) {
         // this overload method is for tokens with literal values
+        if (arena != null) {
+            arena.add(type, start, current - start, lineNumber, literal);
+            return;
+        }
         String text = source.substring(start, current);
         tokens.add(new Token(type, text, literal, lineNumber));
     }
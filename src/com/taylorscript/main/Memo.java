@@ -0,0 +1,175 @@
+package com.taylorscript.main;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+final class Memo {
+    // -memo: the results of one TSFunction by its arguments, kept while the
+    // function is pure. It is pure when its body is (see
+    // Statement.Function.pure) and so is every function bound to a global
+    // it calls, be it a TSFunction or a NativeFunction. That is worked out
+    // again whenever the Environment binds or unbinds a function. A pure
+    // call with the same arguments always returns the same value; one that
+    // raises an error raises it again, since errors are not kept.
+    //
+    // Results are kept in access order and the least recently used goes
+    // beyond CAPACITY, so a function called with ever new arguments does
+    // not hold on to all of them.
+    static final int CAPACITY = 10000;
+    static final Object MISSING = new Object();
+    private static final Object[] NO_ARGS = new Object[0];
+
+    // over all functions, for -stats
+    private static long totalHits = 0;
+    private static long totalMisses = 0;
+    private static long totalEvictions = 0;
+
+    private static final class Key {
+        // args[base..base + count - 1], flattened. A stored Key has its own
+        // copy; the probe a lookup uses reads them off the caller's stack.
+        Key(Object[] args, int base, int count) {
+            set(args, base, count);
+        }
+
+        void set(Object[] args, int base, int count) {
+            this.args = args;
+            this.base = base;
+            this.count = count;
+            // a TSString hashes as the String it flattens to
+            int hash = 1;
+            for (int i = base; i < base + count; i++) hash = 31 * hash + Objects.hashCode(args[i]);
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            // equals as the Interpreter's isEqual does
+            if (!(other instanceof Key)) return false;
+            Key key = (Key)other;
+            if (count != key.count) return false;
+            for (int i = 0; i < count; i++) {
+                Object a = TSString.flatten(args[base + i]);
+                Object b = TSString.flatten(key.args[key.base + i]);
+                if (!Objects.equals(a, b)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private Object[] args;
+        private int base;
+        private int count;
+        private int hash;
+    }
+
+    private final Statement.Function declaration;
+    // looks up the arguments of a call without copying them
+    private final Key probe = new Key(NO_ARGS, 0, 0);
+    private final Map<Key, Object> results = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+            if (size() <= CAPACITY) return false;
+            evictions++;
+            totalEvictions++;
+            return true;
+        }
+    };
+    // the Environment.functionEpoch pure was worked out at, or -1
+    private int epoch = -1;
+    // Parser.deferredBodiesParsed then if a body it needed wasn't parsed
+    // yet, or -1
+    private int bodiesParsed = -1;
+    private boolean pure = false;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    Memo(Statement.Function declaration) {
+        this.declaration = declaration;
+    }
+
+    boolean isPure(Environment globals) {
+        if (epoch != globals.functionEpoch
+                || bodiesParsed >= 0 && bodiesParsed != Parser.deferredBodiesParsed.get()) {
+            results.clear();
+            // a function whose body isn't parsed yet can't be checked; it
+            // is asked again once another body has been parsed
+            int parsed = Parser.deferredBodiesParsed.get();
+            Set<Statement.Function> checked = new HashSet<>();
+            pure = isPure(declaration, globals, checked);
+            epoch = globals.functionEpoch;
+            bodiesParsed = checked.contains(null) ? parsed : -1;
+        }
+        return pure;
+    }
+
+    boolean wasPure() {
+        // as last worked out
+        return pure;
+    }
+
+    private static boolean isPure(Statement.Function function, Environment globals,
+                                  Set<Statement.Function> checked) {
+        if (function.frameSize < 0) {
+            checked.add(null);
+            return false;
+        }
+        if (!function.pure) return false;
+        // one being checked further up is taken to be pure: the answer is
+        // no as soon as anything else says so
+        if (!checked.add(function)) return true;
+        for (int slot : function.calls) {
+            Object callee = globals.valueAt(slot);
+            if (callee instanceof NativeFunction && ((NativeFunction)callee).isPure()) continue;
+            if (!(callee instanceof TSFunction)) return false;
+            if (!isPure(((TSFunction)callee).declaration(), globals, checked)) return false;
+        }
+        return true;
+    }
+
+    Object get(Object[] args, int base, int count) {
+        // the result for args[base..base + count - 1], or MISSING
+        probe.set(args, base, count);
+        Object value = results.getOrDefault(probe, MISSING);
+        // the probe must not keep the caller's stack alive
+        probe.set(NO_ARGS, 0, 0);
+        if (value == MISSING) {
+            misses++;
+            totalMisses++;
+        } else {
+            hits++;
+            totalHits++;
+        }
+        return value;
+    }
+
+    Object key(Object[] args, int base, int count) {
+        // the key to put a result under, taken before the body can
+        // assign to its parameters
+        Object[] key = new Object[count];
+        // a TSString equals only the String it flattens to by isEqual
+        for (int i = 0; i < count; i++) key[i] = TSString.flatten(args[base + i]);
+        return new Key(key, 0, count);
+    }
+
+    void put(Object key, Object value) {
+        results.put((Key)key, value);
+    }
+
+    @Override
+    public String toString() {
+        return declaration.name.lexeme + ": " + hits + " hits, " + misses + " misses, "
+                + evictions + " evicted";
+    }
+
+    static String report() {
+        return "Memo: " + totalHits + " hits, " + totalMisses + " misses, " + totalEvictions + " evicted";
+    }
+}
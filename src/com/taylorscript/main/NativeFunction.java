@@ -0,0 +1,157 @@
+package com.taylorscript.main;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+abstract class NativeFunction implements TSCallable {
+    // A builtin written in Java. defineLibrary binds them to globals
+    // before a script runs, and a script may bind the names to something
+    // else. Calls to a builtin skip the frame a TSFunction needs: the
+    // Interpreter and the Jit's code hand it the arguments directly, and
+    // each builtin overrides the call method for its arity (call0..call3)
+    // to work on them unboxed where it can.
+    //
+    // A builtin never calls back into the script. The RuntimeErrors it
+    // raises have no token; the caller reports them at the call (see
+    // RuntimeError.at).
+
+    private final String name;
+    private final int arity;
+    // returns the same for the same arguments, for -memo
+    private final boolean pure;
+
+    NativeFunction(String name, int arity, boolean pure) {
+        this.name = name;
+        this.arity = arity;
+        this.pure = pure;
+    }
+
+    static void defineLibrary(Environment globals) {
+        define(globals, new Math1("sqrt", Math::sqrt));
+        define(globals, new Math1("abs", Math::abs));
+        define(globals, new Math1("floor", Math::floor));
+        define(globals, new Math1("ceil", Math::ceil));
+        define(globals, new Math2("min", Math::min));
+        define(globals, new Math2("max", Math::max));
+        define(globals, new Math2("mod", (a, b) -> {
+            if (b == 0) throw new RuntimeError(null, "Zero division error.");
+            return a % b;
+        }));
+
+        define(globals, new NativeFunction("clock", 0, false) {
+            @Override
+            public Object call0(Interpreter interpreter) {
+                // seconds, as scripts time themselves with
+                return System.currentTimeMillis() / 1000.0;
+            }
+        });
+        define(globals, new NativeFunction("nanoTime", 0, false) {
+            @Override
+            public Object call0(Interpreter interpreter) {
+                return (double)System.nanoTime();
+            }
+        });
+
+        define(globals, new NativeFunction("length", 1, true) {
+            @Override
+            public Object call1(Interpreter interpreter, Object a) {
+                // a TSString knows its length without flattening
+                return (double)string(a).length();
+            }
+        });
+        define(globals, new NativeFunction("substring", 3, true) {
+            @Override
+            public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+                String string = string(a).toString();
+                int start = index(b, string.length());
+                int end = index(c, string.length());
+                if (start > end) throw new RuntimeError(null, "Substring start is past its end.");
+                return string.substring(start, end);
+            }
+        });
+        define(globals, new NativeFunction("indexOf", 2, true) {
+            @Override
+            public Object call2(Interpreter interpreter, Object a, Object b) {
+                return (double)string(a).toString().indexOf(string(b).toString());
+            }
+        });
+    }
+
+    private static void define(Environment globals, NativeFunction function) {
+        globals.define(function.name, function);
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    boolean isPure() {
+        return pure;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] args, int base) {
+        switch (arity) {
+            case 0: return call0(interpreter);
+            case 1: return call1(interpreter, args[base]);
+            case 2: return call2(interpreter, args[base], args[base + 1]);
+            default: return call3(interpreter, args[base], args[base + 1], args[base + 2]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn " + name + ">";
+    }
+
+    private static double number(Object value) {
+        if (value instanceof Double) return (double)value;
+        throw new RuntimeError(null, "Argument must be a number.");
+    }
+
+    private static CharSequence string(Object value) {
+        // a String or a TSString
+        if (value instanceof CharSequence) return (CharSequence)value;
+        throw new RuntimeError(null, "Argument must be a string.");
+    }
+
+    private static int index(Object value, int length) {
+        double index = number(value);
+        if (index != Math.floor(index)) {
+            throw new RuntimeError(null, "Index " + Interpreter.stringify(value) + " must be an integer.");
+        }
+        if (index < 0 || index > length) {
+            throw new RuntimeError(null, "Index " + Interpreter.stringify(value) + " is out of range.");
+        }
+        return (int)index;
+    }
+
+    private static final class Math1 extends NativeFunction {
+        private final DoubleUnaryOperator operator;
+
+        Math1(String name, DoubleUnaryOperator operator) {
+            super(name, 1, true);
+            this.operator = operator;
+        }
+
+        @Override
+        public Object call1(Interpreter interpreter, Object a) {
+            return operator.applyAsDouble(number(a));
+        }
+    }
+
+    private static final class Math2 extends NativeFunction {
+        private final DoubleBinaryOperator operator;
+
+        Math2(String name, DoubleBinaryOperator operator) {
+            super(name, 2, true);
+            this.operator = operator;
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Object a, Object b) {
+            return operator.applyAsDouble(number(a), number(b));
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.taylorscript.main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class Optimizer implements Expr.Visitor<Expr>, Statement.Visitor<Statement> {
+    // Rewrites the parsed tree before it is interpreted:
+    //  - constant Unary/Binary/Logical expressions are folded into literals
+    //  - statements after a BackTo and branches with constant conditions
+    //    are removed
+    //  - x ^ 2 becomes x * x when x has no side effects, and x / 2^k
+    //    becomes x * 2^-k
+    // Only rewrites that cannot change behaviour are made: an expression
+    // that would raise a runtime error (zero division, wrong operand types)
+    // is left alone, so the error and its line stay the same.
+
+    List<Statement> optimize(List<Statement> statements) {
+        List<Statement> result = new ArrayList<>(statements.size());
+        for (Statement statement : statements) {
+            Statement optimized = optimize(statement);
+            if (optimized != null) result.add(optimized);
+            // the rest of the list can never run
+            if (optimized instanceof Statement.Return || optimized instanceof Statement.Break
+                    || optimized instanceof Statement.Continue) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private Statement optimize(Statement statement) {
+        // null when the statement has no effect at all
+        return statement == null ? null : statement.accept(this);
+    }
+
+    private Statement optimizeBranch(Statement statement) {
+        // for places that need a statement
+        Statement optimized = optimize(statement);
+        return optimized != null ? optimized : new Statement.Block(new ArrayList<>());
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+
+    @Override
+    public Statement visitBlockStatement(Statement.Block statement) {
+        return new Statement.Block(optimize(statement.statements));
+    }
+
+    @Override
+    public Statement visitExpressionStatement(Statement.Expression statement) {
+        Expr expression = optimize(statement.expression);
+        if (expression instanceof Expr.Literal) return null;
+        return new Statement.Expression(expression);
+    }
+
+    @Override
+    public Statement visitForStatement(Statement.For statement) {
+        Statement initializer = optimize(statement.initializer);
+        Expr condition = optimize(statement.condition);
+        if (condition instanceof Expr.Literal) {
+            if (!Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                // only the initializer runs, still in a scope of its own
+                if (initializer == null) return null;
+                List<Statement> scope = new ArrayList<>();
+                scope.add(initializer);
+                return new Statement.Block(scope);
+            }
+            condition = null;
+        }
+        return new Statement.For(initializer, condition, optimize(statement.increment),
+                optimizeBranch(statement.body));
+    }
+
+    @Override
+    public Statement visitFunctionStatement(Statement.Function statement) {
+        // a deferred body is optimized once it is parsed
+        if (Parser.isDeferred(statement.body)) return statement;
+        return new Statement.Function(statement.name, statement.params, optimize(statement.body));
+    }
+
+    @Override
+    public Statement visitIfStatement(Statement.If statement) {
+        Expr condition = optimize(statement.condition);
+        if (condition instanceof Expr.Literal) {
+            return Interpreter.isTruthy(((Expr.Literal)condition).value)
+                    ? optimize(statement.thenBranch)
+                    : optimize(statement.elseBranch);
+        }
+
+        Statement elseBranch = optimize(statement.elseBranch);
+        return new Statement.If(condition, optimizeBranch(statement.thenBranch), elseBranch);
+    }
+
+    @Override
+    public Statement visitPrintStatement(Statement.Print statement) {
+        return new Statement.Print(optimize(statement.expression));
+    }
+
+    @Override
+    public Statement visitBreakStatement(Statement.Break statement) {
+        return statement;
+    }
+
+    @Override
+    public Statement visitContinueStatement(Statement.Continue statement) {
+        return statement;
+    }
+
+    @Override
+    public Statement visitReturnStatement(Statement.Return statement) {
+        return new Statement.Return(statement.keyword, optimize(statement.value));
+    }
+
+    @Override
+    public Statement visitLetStatement(Statement.Let statement) {
+        return new Statement.Let(statement.name, optimize(statement.initializer));
+    }
+
+    @Override
+    public Statement visitWhileStatement(Statement.While statement) {
+        Expr condition = optimize(statement.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+        return new Statement.While(condition, optimizeBranch(statement.body));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        return new Expr.Assign(expr.name, optimize(expr.value), expr.equals);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = fold(expr.operator.type,
+                    ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+            if (value != NOT_CONSTANT) return new Expr.Literal(value);
+        }
+
+        if (right instanceof Expr.Literal && ((Expr.Literal)right).value instanceof Double) {
+            double constant = (Double) ((Expr.Literal)right).value;
+
+            if (expr.operator.type == TokenType.CARET && constant == 2 && hasNoSideEffects(left)) {
+                // exact, as Math.pow(x, 2) is x * x. Evaluating left twice
+                // gives the same value or raises the same error the first
+                // time. x * x * x and the like are not exact for ^3 and up.
+                return new Expr.Binary(left, multiply(expr.operator), left);
+            }
+
+            if (expr.operator.type == TokenType.SLASH && isPowerOfTwo(constant)) {
+                // exact: both round x * 2^-k once
+                return new Expr.Binary(left, multiply(expr.operator), new Expr.Literal(1 / constant));
+            }
+        }
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> args = new ArrayList<>(expr.args.size());
+        for (Expr arg : expr.args) args.add(optimize(arg));
+        return new Expr.Call(optimize(expr.callee), expr.bracket, args);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // parentheses only matter to the parser
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal) {
+            // the result is either the left value or whatever right yields
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            boolean shortCircuits = expr.operator.type == TokenType.LOGICAL_OR ? truthy : !truthy;
+            return shortCircuits ? left : right;
+        }
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            if (expr.operator.type == TokenType.LOGICAL_NOT) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (expr.operator.type == TokenType.MINUS && value instanceof Double) {
+                return new Expr.Literal(-(double)value);
+            }
+        }
+
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    private static final Object NOT_CONSTANT = new Object();
+
+    private static Object fold(TokenType operator, Object left, Object right) {
+        // the Interpreter's result for two constants, or NOT_CONSTANT where
+        // it would raise an error
+        switch (operator) {
+            case COMP_EQUAL: return Interpreter.isEqual(left, right);
+            case NOT_EQUAL: return !Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
+                break;
+        }
+
+        if (!(left instanceof Double) || !(right instanceof Double)) return NOT_CONSTANT;
+        double a = (Double) left;
+        double b = (Double) right;
+        switch (operator) {
+            case GREATER_THAN: return a > b;
+            case GREATER_THAN_EQ: return a >= b;
+            case LESS_THAN: return a < b;
+            case LESS_THAN_EQ: return a <= b;
+            case PLUS: return a + b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH: return b == 0 ? NOT_CONSTANT : a / b;
+            case CARET: return Math.pow(a, b);
+        }
+        return NOT_CONSTANT;
+    }
+
+    private static Token multiply(Token operator) {
+        // keeps the operator's line for "Operands must be numbers."
+        return new Token(TokenType.STAR, operator.lexeme, null, operator.lineNumber());
+    }
+
+    private static boolean isPowerOfTwo(double value) {
+        // 2^k with 2^-k also a normal double
+        return value > 0 && value == Math.scalb(1.0, Math.getExponent(value))
+                && Math.abs(Math.getExponent(value)) <= Double.MAX_EXPONENT - 1;
+    }
+
+    private static boolean hasNoSideEffects(Expr expr) {
+        // no calls or assignments anywhere in it
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) return true;
+        if (expr instanceof Expr.Unary) return hasNoSideEffects(((Expr.Unary)expr).right);
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return hasNoSideEffects(binary.left) && hasNoSideEffects(binary.right);
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return hasNoSideEffects(logical.left) && hasNoSideEffects(logical.right);
+        }
+        return false;
+    }
+}
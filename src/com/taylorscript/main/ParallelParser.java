@@ -0,0 +1,140 @@
+package com.taylorscript.main;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+class ParallelParser {
+    // Front end for scripts with many Tailor fragments. The fragment graph is
+    // lexed and parsed concurrently, each fragment with its own Lexer and
+    // Parser, and the statements are spliced back in source order.
+    // Includes must therefore sit between top-level declarations.
+    private final ForkJoinPool pool;
+    private final Map<Path, Unit> units = new ConcurrentHashMap<>();
+    private final Set<Path> claimed = ConcurrentHashMap.newKeySet();
+    private final Includes includes = new Includes();
+
+    private static class Unit {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Unit(FragmentCache.Fragment fragment, int endLine) {
+            this.fragment = fragment;
+            this.endLine = endLine;
+            this.segments = new List[fragment.includes.length + 1];
+        }
+
+        final FragmentCache.Fragment fragment;
+        final int endLine;
+        // statements between consecutive include points
+        final List<Statement>[] segments;
+    }
+
+    ParallelParser(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    List<Statement> parse(Source source) throws IOException {
+        // the script itself is lexed like a fragment, recording its includes
+        Lexer lexer = new Lexer(source);
+        Unit main = new Unit(lexer.scanFragment(-1, -1, null), lexer.lineNumber());
+
+        try {
+            pool.submit(() -> ForkJoinTask.invokeAll(loads(main.fragment))).join();
+            pool.submit(() -> {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                tasks.add(new Parse(main));
+                for (Unit unit : units.values()) tasks.add(new Parse(unit));
+                ForkJoinTask.invokeAll(tasks);
+            }).join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<Statement> statements = new ArrayList<>();
+        splice(main, statements);
+        return statements;
+    }
+
+    Includes includes() {
+        return includes;
+    }
+
+    private void splice(Unit unit, List<Statement> statements) throws IOException {
+        FragmentCache.Fragment fragment = unit.fragment;
+        for (int i = 0; i < unit.segments.length; i++) {
+            statements.addAll(unit.segments[i]);
+            if (i == fragment.includes.length) break;
+
+            Path path = includes.enter(fragment.includes[i], fragment.includeLines[i]);
+            if (path == null) continue;
+            Unit included = units.get(path);
+            includes.lexed(path, included.fragment.hash);
+            splice(included, statements);
+            includes.exit();
+        }
+    }
+
+    private List<Load> loads(FragmentCache.Fragment fragment) {
+        // one task per included fragment not yet claimed by another task
+        List<Load> loads = new ArrayList<>();
+        try {
+            for (String name : fragment.includes) {
+                Path path = Includes.resolve(name);
+                if (path != null && claimed.add(path)) loads.add(new Load(path));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return loads;
+    }
+
+    private class Load extends RecursiveAction {
+        // lexes one fragment, then the fragments it includes in turn
+        private static final long serialVersionUID = 1L;
+        private final Path path;
+
+        Load(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            FragmentCache.Fragment fragment;
+            try {
+                fragment = FragmentCache.shared.get(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            units.put(path, new Unit(fragment, 0));
+            invokeAll(loads(fragment));
+        }
+    }
+
+    private static class Parse extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Unit unit;
+
+        Parse(Unit unit) {
+            this.unit = unit;
+        }
+
+        @Override
+        protected void compute() {
+            FragmentCache.Fragment fragment = unit.fragment;
+            int from = 0;
+            for (int i = 0; i < unit.segments.length; i++) {
+                int to = i < fragment.includeAt.length ? fragment.includeAt[i] : fragment.tokens.size();
+                int endLine = i == fragment.includes.length ? unit.endLine : 0;
+                unit.segments[i] = new Parser(fragment.tokens.range(from, to, endLine)).parse();
+                from = to;
+            }
+        }
+    }
+}
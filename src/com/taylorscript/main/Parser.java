@@ -1,19 +1,35 @@
 package com.taylorscript.main;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.taylorscript.main.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
+    private final boolean deferBodies;
     private int current = 0;
+    private boolean reachedEnd = false;
+    private boolean hadError = false;
 
     Parser(List<Token> tokens) {
+        this(TokenBuffer.of(tokens));
+    }
+
+    Parser(TokenBuffer tokens) {
+        this.tokens = tokens;
+        this.deferBodies = false;
+    }
+
+    Parser(TokenArena tokens, boolean deferBodies) {
+        // deferBodies: function bodies are only bracket-matched here and
+        // parsed on first use, see DeferredBody
         this.tokens = tokens;
+        this.deferBodies = deferBodies;
     }
 
     List<Statement> parse() {
@@ -25,8 +41,22 @@ class Parser {
         return statements;
     }
 
+    Statement parseDeclaration() {
+        // a single top-level declaration, for parsing a document piecewise
+        return declaration();
+    }
+
+    int position() {
+        return current;
+    }
+
+    boolean reachedEnd() {
+        // an error was reported at EOF, i.e. a declaration was cut off
+        return reachedEnd;
+    }
+
     private Expr expression() {
-        return assignment();
+        return parsePrecedence(PREC_ASSIGNMENT);
     }
 
     private Statement declaration() {
@@ -44,6 +74,7 @@ class Parser {
         if (match(IF)) return ifStatement();
         if (match(PRINT)) return printStatement();
         if (match(RETURN)) return returnStatement();
+        if (match(BREAK) || match(CONTINUE)) return jumpStatement();
         if (match(LOOP)) return loopStatement();
         if (match(LEFT_BRACKET)) return new Statement.Block(block());
 
@@ -84,8 +115,17 @@ class Parser {
         return new Statement.Return(keyword, value);
     }
 
+    private Statement jumpStatement() {
+        // ShakeItOff (break) or Evermore (continue)
+        Token keyword = previous();
+        consume(SEMICOLON, "Expect ';' after '" + keyword.lexeme + "'.");
+        if (keyword.type == BREAK) return new Statement.Break(keyword);
+        return new Statement.Continue(keyword);
+    }
+
     private Statement varDeclaration() {
-        Token name = consume(IDENT, "Expect variable name.");
+        consume(IDENT, "Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if (match(ASSIGN_EQUAL)) {
@@ -130,19 +170,7 @@ class Parser {
         consume(RIGHT_BRACKET, "Expect ']' after loop header.");
 
         Statement body = statement();
-
-        if (increment != null) {
-            body = new Statement.Block(Arrays.asList(body, new Statement.Expression(increment)));
-        }
-
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Statement.While(condition, body);
-
-        if (initializer != null) {
-            body = new Statement.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Statement.For(initializer, condition, increment, body);
     }
 
     private Statement expressionStatement() {
@@ -152,7 +180,8 @@ class Parser {
     }
 
     private Statement.Function function() {
-        Token name = consume(IDENT, "Expect function name.");
+        consume(IDENT, "Expect function name.");
+        Token name = previous();
 
         consume(LEFT_BRACKET, "Expect '[' after function name.");
         List<Token> params = new ArrayList<>();
@@ -162,17 +191,108 @@ class Parser {
                     error(peek(), "The number of arguments exceeded the maximum limit (255).");
                 }
 
-                params.add(consume(IDENT, "Expect parameter name."));
+                consume(IDENT, "Expect parameter name.");
+                params.add(previous());
             } while (match(COMMA));
         }
 
         consume(RIGHT_BRACKET, "Expect ']' after paremeters.");
         
         consume(LEFT_BRACKET, "Expect '[' before function body.");
+        if (deferBodies) {
+            DeferredBody body = deferredBody(name);
+            Statement.Function function = new Statement.Function(name, params, body);
+            body.function = function;
+            return function;
+        }
         List<Statement> body = block();
         return new Statement.Function(name, params, body);
     }
 
+    private DeferredBody deferredBody(Token name) {
+        // skips to the matching ']', leaving the body's tokens unparsed
+        int from = current;
+        int depth = 0;
+        while (!isAtEnd()) {
+            TokenType type = tokens.type(current);
+            if (type == RIGHT_BRACKET && depth-- == 0) break;
+            if (type == LEFT_BRACKET) depth++;
+            advance();
+        }
+        consume(RIGHT_BRACKET, "Expect ']' after block.");
+        return new DeferredBody((TokenArena) tokens, from, current, name);
+    }
+
+    // counts the deferred bodies parsed so far, so that what was worked
+    // out while one wasn't (see Memo) can tell when to look again
+    static final AtomicInteger deferredBodiesParsed = new AtomicInteger();
+
+    static boolean isDeferred(List<Statement> body) {
+        // true for a body that has not been parsed yet; reading it parses it
+        return body instanceof DeferredBody && ((DeferredBody)body).statements == null;
+    }
+
+    private static final class DeferredBody extends AbstractList<Statement> {
+        // A function body kept as its token range [from, to), closing ']'
+        // included, and parsed, optimized and resolved the first time it is
+        // read. Bodies may be called from several threads, so this happens
+        // once under a lock.
+        private final TokenArena tokens;
+        private final int from;
+        private final int to;
+        private final Token name;
+        private Statement.Function function;
+        private volatile List<Statement> statements;
+        private boolean hadError = false;
+
+        DeferredBody(TokenArena tokens, int from, int to, Token name) {
+            this.tokens = tokens;
+            this.from = from;
+            this.to = to;
+            this.name = name;
+        }
+
+        @Override
+        public Statement get(int index) {
+            return parsed().get(index);
+        }
+
+        @Override
+        public int size() {
+            return parsed().size();
+        }
+
+        private List<Statement> parsed() {
+            List<Statement> body = statements;
+            if (body != null) return body;
+
+            synchronized (this) {
+                if (statements == null && !hadError) {
+                    Parser parser = new Parser(tokens.range(from, to, 0));
+                    body = parser.block();
+                    // the errors were reported by the parser or resolver
+                    if (parser.hadError) {
+                        hadError = true;
+                    } else {
+                        body = new Optimizer().optimize(body);
+                        Resolver resolver = new Resolver();
+                        resolver.resolveFunction(function, body);
+                        if (resolver.hadError()) {
+                            hadError = true;
+                        } else {
+                            statements = body;
+                            deferredBodiesParsed.incrementAndGet();
+                        }
+                    }
+                }
+                if (hadError) {
+                    throw new RuntimeError(name, "Function '" + name.lexeme + "' has compile errors.");
+                }
+                return statements;
+            }
+        }
+    }
+
     private List<Statement> block() {
         List<Statement> statements = new ArrayList<>();
 
@@ -184,120 +304,145 @@ class Parser {
         return statements;
     }
 
-    private Expr assignment() {
-        Expr expr = or();
-
-        if (match(ASSIGN_EQUAL, PLUS_EQ, MINUS_EQ, STAR_EQ, SLASH_EQ)) {
-            Token equals = previous();
-            Expr value = assignment();
+    // Expressions are parsed by precedence climbing over a rule table: each
+    // token type may start an expression (prefix), continue one (infix), and
+    // binds as an infix operator with the given precedence.
+    private static final int PREC_NONE = 0;
+    private static final int PREC_ASSIGNMENT = 1;  // = += -= *= /=  (right-assoc)
+    private static final int PREC_OR = 2;          // ||
+    private static final int PREC_AND = 3;         // &&
+    private static final int PREC_EQUALITY = 4;    // == !=
+    private static final int PREC_COMPARISON = 5;  // > >= < <=
+    private static final int PREC_TERM = 6;        // + -
+    private static final int PREC_FACTOR = 7;      // * /
+    private static final int PREC_EXPONENT = 8;    // ^  (non-associative)
+    private static final int PREC_UNARY = 9;       // ! -
+    private static final int PREC_CALL = 10;       // callee[...]
 
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value, equals);
-            }
-
-            error(equals, "Invalid assignment target.");
-        }
+    private interface PrefixRule {
+        Expr parse(Parser parser);
+    }
 
-        return expr;
+    private interface InfixRule {
+        Expr parse(Parser parser, Expr left);
     }
 
-    private Expr or() {
-        Expr expr = and();
+    private static final PrefixRule[] prefixRules = new PrefixRule[TokenType.values().length];
+    private static final InfixRule[] infixRules = new InfixRule[TokenType.values().length];
+    private static final int[] precedences = new int[TokenType.values().length];
 
-        while (match(LOGICAL_OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-        return expr;
+    static {
+        prefix(Parser::literal, NUMBER, STRING, TRUE, FALSE, NIL);
+        prefix(Parser::variable, IDENT);
+        prefix(Parser::grouping, LEFT_PAREN);
+        prefix(Parser::unary, LOGICAL_NOT, MINUS);
+
+        infix(Parser::assignment, PREC_ASSIGNMENT, ASSIGN_EQUAL, PLUS_EQ, MINUS_EQ, STAR_EQ, SLASH_EQ);
+        infix(Parser::logical, PREC_OR, LOGICAL_OR);
+        infix(Parser::logical, PREC_AND, LOGICAL_AND);
+        infix(Parser::binary, PREC_EQUALITY, NOT_EQUAL, COMP_EQUAL);
+        infix(Parser::binary, PREC_COMPARISON, GREATER_THAN, GREATER_THAN_EQ, LESS_THAN, LESS_THAN_EQ);
+        infix(Parser::binary, PREC_TERM, MINUS, PLUS);
+        infix(Parser::binary, PREC_FACTOR, SLASH, STAR);
+        infix(Parser::exponent, PREC_EXPONENT, CARET);
+        infix(Parser::call, PREC_CALL, LEFT_BRACKET);
     }
 
-    private Expr and() {
-        Expr expr = equality();
+    private static void prefix(PrefixRule rule, TokenType... types) {
+        for (TokenType type : types) prefixRules[type.ordinal()] = rule;
+    }
 
-        while (match(LOGICAL_AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+    private static void infix(InfixRule rule, int precedence, TokenType... types) {
+        for (TokenType type : types) {
+            infixRules[type.ordinal()] = rule;
+            precedences[type.ordinal()] = precedence;
         }
-
-        return expr;
     }
 
-    private Expr equality() {
-        // equality -> comparison ( ( "!=" | "==" ) comparison )*
-        Expr expr = comparison();
+    private Expr parsePrecedence(int precedence) {
+        // parses an expression whose infix operators bind at least as tightly
+        // as precedence
+        PrefixRule prefix = prefixRules[tokens.type(current).ordinal()];
+        if (prefix == null) throw error(peek(), "Expect expression.");
+        advance();
+        Expr expr = prefix.parse(this);
+
+        // '^' takes a unary operand on its left, so it cannot follow another
+        // binary operator at this level: 'a ^ b ^ c' stays an error
+        boolean isUnaryOperand = true;
+        while (true) {
+            TokenType type = tokens.type(current);
+            int binding = precedences[type.ordinal()];
+            if (binding == PREC_NONE || binding < precedence) break;
+            if (type == CARET && !isUnaryOperand) break;
 
-        while (match(NOT_EQUAL, COMP_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+            advance();
+            expr = infixRules[type.ordinal()].parse(this, expr);
+            if (binding != PREC_CALL) isUnaryOperand = false;
         }
 
         return expr;
     }
 
-    private Expr comparison() {
-        // comparison -> term ( ( ">" | ">=" | "<" | "<=" ) term )*
-        Expr expr = term();
-
-        while (match(GREATER_THAN, GREATER_THAN_EQ, LESS_THAN, LESS_THAN_EQ)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr literal() {
+        switch (tokens.type(current - 1)) {
+            case FALSE: return new Expr.Literal(false);
+            case TRUE: return new Expr.Literal(true);
+            case NIL: return new Expr.Literal(null);
+            default: return new Expr.Literal(tokens.literal(current - 1));
         }
-
-        return expr;
     }
 
-    private Expr term() {
-        Expr expr = factor();
+    private Expr variable() {
+        return new Expr.Variable(previous());
+    }
 
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    private Expr grouping() {
+        Expr expr = expression();
+        consume(RIGHT_PAREN, "Expect ')' after expression");
+        return new Expr.Grouping(expr);
+    }
 
-        return expr;
+    private Expr unary() {
+        // unary -> ( "!" | "-" ) unary | call
+        Token operator = previous();
+        Expr right = parsePrecedence(PREC_UNARY);
+        return new Expr.Unary(operator, right);
     }
 
-    private Expr factor() {
-        Expr expr = exponent();
+    private Expr assignment(Expr target) {
+        Token equals = previous();
+        Expr value = parsePrecedence(PREC_ASSIGNMENT);
 
-        while (match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = exponent();
-            expr = new Expr.Binary(expr, operator, right);
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable)target).name;
+            return new Expr.Assign(name, value, equals);
         }
 
-        return expr;
+        error(equals, "Invalid assignment target.");
+        return target;
     }
 
-    private Expr exponent() {
-        Expr expr = unary();
-        if (match(CARET)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
+    private Expr logical(Expr left) {
+        Token operator = previous();
+        Expr right = parsePrecedence(precedences[operator.type.ordinal()] + 1);
+        return new Expr.Logical(left, operator, right);
     }
 
-    private Expr unary() {
-        // unary -> ( "!" | "-" ) unary | primary
-        if (match(LOGICAL_NOT, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
+    private Expr binary(Expr left) {
+        // left-associative: the right operand binds one level tighter
+        Token operator = previous();
+        Expr right = parsePrecedence(precedences[operator.type.ordinal()] + 1);
+        return new Expr.Binary(left, operator, right);
+    }
 
-        return call();
+    private Expr exponent(Expr left) {
+        Token operator = previous();
+        Expr right = parsePrecedence(PREC_UNARY);
+        return new Expr.Binary(left, operator, right);
     }
 
-    private Expr finishCall(Expr callee) {
+    private Expr call(Expr callee) {
         List<Expr> arguments = new ArrayList<>();
         if (!check(RIGHT_BRACKET)) {  // square(a, b, c)
             do {
@@ -307,57 +452,27 @@ class Parser {
                 arguments.add(expression());
             } while (match(COMMA));
         }
-        Token bracket = consume(RIGHT_BRACKET, "Expect ']' after arguments.");
+        consume(RIGHT_BRACKET, "Expect ']' after arguments.");
+        Token bracket = previous();
         return new Expr.Call(callee, bracket, arguments);
     }
 
-    private Expr call() {
-        Expr expr = primary();
-
-        while (true) {
-            if (match(LEFT_BRACKET)) expr = finishCall(expr);
-            else break;
-        }
-
-        return expr;
-    }
-
-    private Expr primary() {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
-
-        if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
-        }
-
-        if (match(IDENT)) {
-            return new Expr.Variable(previous());
-        }
-
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression");
-            return new Expr.Grouping(expr);
-        }
-
-        throw error(peek(), "Expect expression.");
-    }
-
-    private boolean match(TokenType... types) {
-        // consumes current token if it has any of given types
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
+    private boolean match(TokenType type) {
+        // consumes current token if it has the given type
+        if (check(type)) {
+            advance();
+            return true;
         }
 
         return false;
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        // tokens are only materialized through previous()/peek() when needed
+        if (check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
@@ -365,16 +480,15 @@ class Parser {
     private boolean check(TokenType type) {
         // true if the current token is of given type
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) current++;
-        return previous();
     }
 
-    private boolean isAtEnd() {
-        return peek().type == EOF;
+    boolean isAtEnd() {
+        return tokens.type(current) == EOF;
     }
 
     private Token peek() {
@@ -388,6 +502,8 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
+        if (token.type == EOF) reachedEnd = true;
+        hadError = true;
         TaylorScript.error(token, message);
         return new ParseError();
     }
@@ -397,13 +513,15 @@ class Parser {
 
         while (!isAtEnd()) {
             if (previous().type == SEMICOLON) return;
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case FUNC:
                 case LOOP:
                 case VAR:
                 case IF:
                 case PRINT:
                 case RETURN:
+                case BREAK:
+                case CONTINUE:
                     return;
             }
             advance();
@@ -0,0 +1,340 @@
+package com.taylorscript.main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Resolver implements Expr.Visitor<Void>, Statement.Visitor<Void> {
+    // Gives every local variable a slot in a frame, so the Interpreter
+    // reads it with an array index instead of looking its name up.
+    //
+    // A function only sees its own locals and the globals, never the
+    // locals around its declaration, so each call gets one flat Object[]
+    // frame for its parameters and the locals of all its nested scopes.
+    // Scopes take slots in stack order and sibling scopes share them. A
+    // name is therefore either a slot of the current frame or a global:
+    // Variable/Assign/Let/Function get slot -1 and their slot in the global
+    // Environment instead. Top-level code outside any block declares
+    // globals; its blocks use a script frame.
+    //
+    // Declarations only appear directly in a block, a function body or a
+    // loop header, never as the branch of an If or loop, so a slot is always
+    // written before any code resolved to it runs.
+    //
+    // It also marks Binary and Unary expressions whose value can only be a
+    // number (see isNumeric), returns from a function of a call's value as
+    // tail calls, and functions whose body has no effects of its own as
+    // pure (see Statement.Function.pure).
+
+    private static class Scope {
+        Scope(int firstSlot) {
+            this.firstSlot = firstSlot;
+        }
+
+        final int firstSlot;
+        final Map<String, Integer> slots = new HashMap<>();
+    }
+
+    // state of the function being resolved
+    private List<Scope> scopes = new ArrayList<>();
+    private int nextSlot = 0;
+    private int frameSize = 0;
+    private int loopDepth = 0;
+    private boolean inFunction = false;
+    private boolean pure = true;
+    private List<Integer> calls = new ArrayList<>();
+
+    private String declaring = null;  // local whose initializer is being resolved
+    private boolean hadError = false;
+
+    int resolve(List<Statement> statements) {
+        // resolves top-level code and returns the size of its script frame
+        for (Statement statement : statements) resolve(statement);
+        return frameSize;
+    }
+
+    void resolveFunction(Statement.Function function, List<Statement> body) {
+        List<Scope> enclosingScopes = scopes;
+        int enclosingNextSlot = nextSlot;
+        int enclosingFrameSize = frameSize;
+        int enclosingLoopDepth = loopDepth;
+        boolean enclosingInFunction = inFunction;
+        boolean enclosingPure = pure;
+        List<Integer> enclosingCalls = calls;
+        scopes = new ArrayList<>();
+        nextSlot = 0;
+        frameSize = 0;
+        loopDepth = 0;
+        inFunction = true;
+        pure = true;
+        calls = new ArrayList<>();
+
+        // parameters take slots 0..n-1; a repeated name means the later one
+        Scope scope = beginScope();
+        for (Token param : function.params) {
+            scope.slots.put(param.lexeme, nextSlot++);
+        }
+        frameSize = nextSlot;
+        for (Statement statement : body) resolve(statement);
+        endScope();
+        function.frameSize = frameSize;
+        function.pure = pure;
+        function.calls = new int[calls.size()];
+        for (int i = 0; i < calls.size(); i++) function.calls[i] = calls.get(i);
+
+        scopes = enclosingScopes;
+        nextSlot = enclosingNextSlot;
+        frameSize = enclosingFrameSize;
+        loopDepth = enclosingLoopDepth;
+        inFunction = enclosingInFunction;
+        pure = enclosingPure;
+        calls = enclosingCalls;
+    }
+
+    boolean hadError() {
+        return hadError;
+    }
+
+    private void resolve(Statement statement) {
+        if (statement != null) statement.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        if (expr != null) expr.accept(this);
+    }
+
+    private Scope beginScope() {
+        Scope scope = new Scope(nextSlot);
+        scopes.add(scope);
+        return scope;
+    }
+
+    private void endScope() {
+        Scope scope = scopes.remove(scopes.size() - 1);
+        nextSlot = scope.firstSlot;
+    }
+
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
+
+        // declaring a name again in the same scope rebinds the same slot
+        Scope scope = scopes.get(scopes.size() - 1);
+        Integer slot = scope.slots.get(name.lexeme);
+        if (slot == null) {
+            slot = nextSlot++;
+            frameSize = Math.max(frameSize, nextSlot);
+            scope.slots.put(name.lexeme, slot);
+        }
+        return slot;
+    }
+
+    private int lookUp(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).slots.get(name.lexeme);
+            if (slot != null) return slot;
+        }
+        return -1;
+    }
+
+    static boolean isNumeric(Expr expr) {
+        // whether expr either yields a double or raises an error, so the
+        // Interpreter can compute it without boxing (see evaluateDouble)
+        if (expr instanceof Expr.Binary) return ((Expr.Binary)expr).numeric;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).numeric;
+        return expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof Double;
+    }
+
+    private void error(Token token, String message) {
+        TaylorScript.error(token, message);
+        hadError = true;
+    }
+
+    @Override
+    public Void visitBlockStatement(Statement.Block statement) {
+        beginScope();
+        for (Statement inner : statement.statements) resolve(inner);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStatement(Statement.Break statement) {
+        checkInLoop(statement.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStatement(Statement.Continue statement) {
+        checkInLoop(statement.keyword);
+        return null;
+    }
+
+    private void checkInLoop(Token keyword) {
+        if (loopDepth == 0) error(keyword, "Can't use '" + keyword.lexeme + "' outside of a loop.");
+    }
+
+    @Override
+    public Void visitExpressionStatement(Statement.Expression statement) {
+        resolve(statement.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStatement(Statement.For statement) {
+        // the loop variable gets a scope around the whole loop
+        beginScope();
+        resolve(statement.initializer);
+        resolve(statement.condition);
+        resolve(statement.increment);
+        loopDepth++;
+        resolve(statement.body);
+        loopDepth--;
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStatement(Statement.Function statement) {
+        statement.slot = declare(statement.name);
+        if (statement.slot < 0) statement.global = Environment.slotOf(statement.name.lexeme);
+        // each run of a local Define makes a new function value
+        pure = false;
+        // a deferred body is resolved once it is parsed
+        if (!Parser.isDeferred(statement.body)) resolveFunction(statement, statement.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStatement(Statement.If statement) {
+        resolve(statement.condition);
+        resolve(statement.thenBranch);
+        resolve(statement.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStatement(Statement.Print statement) {
+        resolve(statement.expression);
+        pure = false;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStatement(Statement.Return statement) {
+        resolve(statement.value);
+        // a top-level return ends the script instead
+        statement.tailCall = inFunction && statement.value instanceof Expr.Call;
+        return null;
+    }
+
+    @Override
+    public Void visitLetStatement(Statement.Let statement) {
+        String enclosing = declaring;
+        boolean isNew = !scopes.isEmpty()
+                && !scopes.get(scopes.size() - 1).slots.containsKey(statement.name.lexeme);
+        declaring = isNew ? statement.name.lexeme : null;
+        resolve(statement.initializer);
+        declaring = enclosing;
+
+        statement.slot = declare(statement.name);
+        if (statement.slot < 0) {
+            statement.global = Environment.slotOf(statement.name.lexeme);
+            pure = false;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStatement(Statement.While statement) {
+        resolve(statement.condition);
+        loopDepth++;
+        resolve(statement.body);
+        loopDepth--;
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        expr.slot = lookUp(expr.name);
+        if (expr.slot < 0) {
+            expr.global = Environment.slotOf(expr.name.lexeme);
+            pure = false;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+            case CARET:
+                expr.numeric = true;
+                break;
+            case PLUS:
+                // a number plus anything else than a number is an error
+                expr.numeric = isNumeric(expr.left) || isNumeric(expr.right);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        boolean enclosingPure = pure;
+        resolve(expr.callee);
+        // reading a global to call it is left to the check of that function
+        if (expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).slot < 0) {
+            pure = enclosingPure;
+            calls.add(((Expr.Variable)expr.callee).global);
+        } else {
+            pure = false;
+        }
+        for (Expr arg : expr.args) resolve(arg);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        expr.numeric = expr.operator.type == TokenType.MINUS;
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.name.lexeme.equals(declaring)) {
+            error(expr.name, "Can't use local variable '" + expr.name.lexeme
+                    + "' before its declaration.");
+        }
+        expr.slot = lookUp(expr.name);
+        if (expr.slot < 0) {
+            expr.global = Environment.slotOf(expr.name.lexeme);
+            pure = false;
+        }
+        return null;
+    }
+}
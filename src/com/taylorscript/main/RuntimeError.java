@@ -7,4 +7,9 @@ class RuntimeError extends RuntimeException {
         super(message);
         this.token = token;
     }
+
+    RuntimeError at(Token token) {
+        // a NativeFunction's error, reported at the call that raised it
+        return this.token != null ? this : new RuntimeError(token, getMessage());
+    }
 }
@@ -0,0 +1,303 @@
+package com.taylorscript.main;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+abstract class Source {
+    // Character input for the Lexer, addressed by absolute offset.
+
+    abstract char charAt(int index);
+
+    abstract boolean isAtEnd(int index);
+
+    abstract String substring(int start, int end);
+
+    void release(int index) {
+        // Characters before index will not be read again
+    }
+
+    // Scans used by the Lexer to skip comments, blanks and string bodies.
+    // These are simple loops over charAt; StringSource and AsciiSource
+    // override them with String.indexOf and word-at-a-time scans
+
+    int indexOf(char c, int from) {
+        // index of the next c, or the end of the source
+        while (!isAtEnd(from) && charAt(from) != c) from++;
+        return from;
+    }
+
+    int indexOf(char first, char second, int from) {
+        // index of the next two-char sequence, or the end of the source
+        while (!isAtEnd(from) && (charAt(from) != first || isAtEnd(from + 1)
+                || charAt(from + 1) != second)) {
+            from++;
+        }
+        return from;
+    }
+
+    int skipBlanks(int from) {
+        // index of the next char that is not a space, tab or carriage return
+        while (!isAtEnd(from)) {
+            char c = charAt(from);
+            if (c != ' ' && c != '\t' && c != '\r') break;
+            from++;
+        }
+        return from;
+    }
+
+    int countLines(int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+
+    static Source of(String text) {
+        return new StringSource(text);
+    }
+
+    static Source of(byte[] bytes, Charset charset) {
+        // Bytes that are all below 0x80 are lexed as they are, if the
+        // charset reads them as ASCII; anything else is decoded first
+        if (isAscii(bytes) && readsAscii(charset)) return new AsciiSource(bytes);
+        return new StringSource(new String(bytes, charset));
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        int i = 0;
+        for (int last = bytes.length - Long.BYTES; i <= last; i += Long.BYTES) {
+            if (((long) AsciiSource.WORDS.get(bytes, i) & AsciiSource.HIGH) != 0) return false;
+        }
+        for (; i < bytes.length; i++) {
+            if (bytes[i] < 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean readsAscii(Charset charset) {
+        // true for UTF-8, ISO-8859-1 and the like; false for UTF-16
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) ascii[i] = (byte) i;
+        return new String(ascii, charset).equals(new String(ascii, StandardCharsets.US_ASCII));
+    }
+
+    static Source of(Reader reader) {
+        return new ReaderSource(reader);
+    }
+
+    private static final class StringSource extends Source {
+        private final String text;
+
+        StringSource(String text) {
+            this.text = text;
+        }
+
+        @Override
+        char charAt(int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        boolean isAtEnd(int index) {
+            return index >= text.length();
+        }
+
+        @Override
+        String substring(int start, int end) {
+            return text.substring(start, end);
+        }
+
+        @Override
+        int indexOf(char c, int from) {
+            int index = text.indexOf(c, from);
+            return index < 0 ? text.length() : index;
+        }
+
+        @Override
+        int indexOf(char first, char second, int from) {
+            while (true) {
+                from = indexOf(first, from);
+                if (from + 1 >= text.length()) return text.length();
+                if (text.charAt(from + 1) == second) return from;
+                from++;
+            }
+        }
+    }
+
+    private static final class AsciiSource extends Source {
+        // The scans read the bytes eight at a time as little-endian longs.
+        // Every byte is below 0x80, so a byte of a long is zero exactly when
+        // ((b & 0x7F) + 0x7F | b) has its high bit clear, and the lowest
+        // such byte is the first match in the source.
+        static final VarHandle WORDS =
+                MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+        static final long HIGH = 0x8080808080808080L;
+        private static final long LOW = 0x7F7F7F7F7F7F7F7FL;
+        private static final long ONES = 0x0101010101010101L;
+
+        private final byte[] bytes;
+
+        AsciiSource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private long word(int index) {
+            return (long) WORDS.get(bytes, index);
+        }
+
+        private static long matches(long word, char c) {
+            // high bit set in every byte of word that equals c
+            long x = word ^ (c * ONES);
+            return ~(((x & LOW) + LOW) | x) & HIGH;
+        }
+
+        @Override
+        char charAt(int index) {
+            return (char) bytes[index];
+        }
+
+        @Override
+        boolean isAtEnd(int index) {
+            return index >= bytes.length;
+        }
+
+        @Override
+        String substring(int start, int end) {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        int indexOf(char c, int from) {
+            byte[] bytes = this.bytes;
+            for (int last = bytes.length - Long.BYTES; from <= last; from += Long.BYTES) {
+                long found = matches(word(from), c);
+                if (found != 0) return from + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            while (from < bytes.length && bytes[from] != c) from++;
+            return from;
+        }
+
+        @Override
+        int indexOf(char first, char second, int from) {
+            int last = bytes.length - 1;
+            while (true) {
+                from = indexOf(first, from);
+                if (from >= last) return bytes.length;
+                if (bytes[from + 1] == second) return from;
+                from++;
+            }
+        }
+
+        @Override
+        int skipBlanks(int from) {
+            byte[] bytes = this.bytes;
+            for (int last = bytes.length - Long.BYTES; from <= last; from += Long.BYTES) {
+                long word = word(from);
+                long other = ~(matches(word, ' ') | matches(word, '\t') | matches(word, '\r')) & HIGH;
+                if (other != 0) return from + (Long.numberOfTrailingZeros(other) >>> 3);
+            }
+            while (from < bytes.length) {
+                byte b = bytes[from];
+                if (b != ' ' && b != '\t' && b != '\r') break;
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        int countLines(int from, int to) {
+            byte[] bytes = this.bytes;
+            int lines = 0;
+            for (int last = to - Long.BYTES; from <= last; from += Long.BYTES) {
+                lines += Long.bitCount(matches(word(from), '\n'));
+            }
+            for (; from < to; from++) {
+                if (bytes[from] == '\n') lines++;
+            }
+            return lines;
+        }
+    }
+
+    private static final class ReaderSource extends Source {
+        // Sliding window over a Reader; only the chars from the last
+        // released offset onwards are kept in memory.
+        private static final int CHUNK_SIZE = 8192;
+
+        private final Reader reader;
+        private char[] buffer = new char[CHUNK_SIZE * 2];
+        private int offset = 0;  // absolute offset of buffer[0]
+        private int length = 0;  // number of valid chars in buffer
+        private int released = 0;
+        private boolean eof = false;
+
+        ReaderSource(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        char charAt(int index) {
+            if (!fill(index)) {
+                throw new StringIndexOutOfBoundsException(index);
+            }
+            return buffer[index - offset];
+        }
+
+        @Override
+        boolean isAtEnd(int index) {
+            return !fill(index);
+        }
+
+        @Override
+        String substring(int start, int end) {
+            if (end > start) fill(end - 1);
+            return new String(buffer, start - offset, end - start);
+        }
+
+        @Override
+        void release(int index) {
+            if (index > released) released = index;
+        }
+
+        private boolean fill(int index) {
+            // reads chunks until index is inside the window or input ends
+            while (index >= offset + length) {
+                if (eof) return false;
+                compact();
+                try {
+                    int read = reader.read(buffer, length, buffer.length - length);
+                    if (read < 0) {
+                        eof = true;
+                        reader.close();
+                    } else {
+                        length += read;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return true;
+        }
+
+        private void compact() {
+            int drop = released - offset;
+            if (drop > 0) {
+                System.arraycopy(buffer, drop, buffer, 0, length - drop);
+                offset += drop;
+                length -= drop;
+            }
+            if (buffer.length - length < CHUNK_SIZE) {
+                // a single token is longer than the window
+                char[] grown = new char[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+    }
+}
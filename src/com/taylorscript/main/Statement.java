@@ -5,7 +5,10 @@ import java.util.List;
 abstract class Statement {
     interface Visitor<R> {
         R visitBlockStatement(Block statement);
+        R visitBreakStatement(Break statement);
+        R visitContinueStatement(Continue statement);
         R visitExpressionStatement(Expression statement);
+        R visitForStatement(For statement);
         R visitFunctionStatement(Function statement);
         R visitIfStatement(If statement);
         R visitPrintStatement(Print statement);
@@ -27,6 +30,32 @@ abstract class Statement {
         final List<Statement> statements;
     }
 
+    static class Break extends Statement {
+        Break(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBreakStatement(this);
+        }
+
+        final Token keyword;
+    }
+
+    static class Continue extends Statement {
+        Continue(Token keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitContinueStatement(this);
+        }
+
+        final Token keyword;
+    }
+
     static class Expression extends Statement {
         Expression(Expr expression) {
             this.expression = expression;
@@ -40,6 +69,25 @@ abstract class Statement {
         final Expr expression;
     }
 
+    static class For extends Statement {
+        For(Statement initializer, Expr condition, Expr increment, Statement body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStatement(this);
+        }
+
+        final Statement initializer;
+        final Expr condition;
+        final Expr increment;
+        final Statement body;
+    }
+
     static class Function extends Statement {
         Function(Token name, List<Token> params, List<Statement> body) {
             this.name = name;
@@ -55,6 +103,15 @@ abstract class Statement {
         final Token name;
         final List<Token> params;
         final List<Statement> body;
+        // set by the Resolver
+        int slot = -1;
+        int global = -1;
+        int frameSize = -1;
+        // set by the Resolver: the body prints nothing, writes no globals
+        // and reads none except the functions it calls, whose global slots
+        // are calls; it is pure if they are (see Memo)
+        boolean pure = false;
+        int[] calls;
     }
 
     static class If extends Statement {
@@ -100,6 +157,9 @@ abstract class Statement {
 
         final Token keyword;
         final Expr value;
+        // set by the Resolver: value is a call whose result a function
+        // returns, so the call can run in the returning frame
+        boolean tailCall = false;
     }
 
     static class Let extends Statement {
@@ -115,6 +175,9 @@ abstract class Statement {
 
         final Token name;
         final Expr initializer;
+        // set by the Resolver: the frame slot of a local, or the global slot
+        int slot = -1;
+        int global = -1;
     }
 
     static class While extends Statement {
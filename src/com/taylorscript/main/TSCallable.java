@@ -1,8 +1,35 @@
 package com.taylorscript.main;
 
-import java.util.List;
-
 interface TSCallable {
+    // A callable gets its arguments in place as args[base..base + arity() - 1],
+    // which is normally the caller's stack, so passing them allocates
+    // nothing. The caller has checked their number against arity().
+    //
+    // call0..call4 are for callers that hold the arguments in hand (the
+    // Jit's code). A callable with a fast path for its arity overrides
+    // the one it has; the others put the arguments on the stack first.
+
     int arity();
-    Object call(Interpreter interpreter, List<Object> args);
+
+    Object call(Interpreter interpreter, Object[] args, int base);
+
+    default Object call0(Interpreter interpreter) {
+        return interpreter.callWith(this, 0, null, null, null, null);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return interpreter.callWith(this, 1, a, null, null, null);
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return interpreter.callWith(this, 2, a, b, null, null);
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return interpreter.callWith(this, 3, a, b, c, null);
+    }
+
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return interpreter.callWith(this, 4, a, b, c, d);
+    }
 }
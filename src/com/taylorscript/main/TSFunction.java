@@ -4,6 +4,14 @@ import java.util.List;
 
 public class TSFunction implements TSCallable {
     private final Statement.Function declaration;
+    // -jit: calls so far, and the body compiled once there were
+    // Jit.THRESHOLD of them. It is kept here rather than on the
+    // declaration so that its class can be unloaded once the function
+    // is redefined.
+    private int calls = 0;
+    private CompiledFunction compiled;
+    // -memo: its results, once it has been called
+    private Memo memo;
 
     TSFunction(Statement.Function declaration) {
         this.declaration = declaration;
@@ -19,18 +27,51 @@ public class TSFunction implements TSCallable {
         return declaration.params.size();
     }
 
-    @Override
-    public Object call(Interpreter interpreter, List<Object> args) {
-        Environment environment = new Environment(interpreter.globals);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, args.get(i));
+    Statement.Function declaration() {
+        return declaration;
+    }
+
+    List<Statement> body() {
+        return declaration.body;
+    }
+
+    int frameSize() {
+        // reading a deferred body parses and resolves it, giving frameSize
+        if (declaration.frameSize < 0) declaration.body.size();
+        return declaration.frameSize;
+    }
+
+    CompiledFunction compiled() {
+        // counts a call; null until the body is compiled, and for good if
+        // it can't be
+        if (compiled == null && calls < Jit.THRESHOLD && ++calls == Jit.THRESHOLD) {
+            compiled = Jit.compile(declaration);
         }
+        return compiled;
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+    CompiledFunction compiledBody() {
+        // without counting a call: for compiled code, whose calls into a
+        // body not compiled yet go through Interpreter.call and count there;
+        // calls of a memoized function have to go there as well
+        return isMemoized() ? null : compiled;
+    }
+
+    Memo memo(Environment globals) {
+        // null unless the function is pure now
+        if (memo == null) {
+            frameSize();
+            memo = new Memo(declaration);
         }
-        return null;
+        return memo.isPure(globals) ? memo : null;
+    }
+
+    boolean isMemoized() {
+        return memo != null && memo.wasPure();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] args, int base) {
+        return interpreter.call(this, args, base);
     }
 }
@@ -0,0 +1,79 @@
+package com.taylorscript.main;
+
+final class TSString implements CharSequence {
+    // A string made by + that is long enough to be worth not copying. It
+    // is the first length chars of a StringBuilder that is only ever
+    // appended to, so the same builder can back every string made from
+    // it: s + piece appends piece in place when s ends where the builder
+    // does, and copies s into a new builder only when s was extended
+    // already (a fork). Building a string piece by piece in a loop is
+    // then linear in its length instead of quadratic.
+    //
+    // Scripts cannot tell it from a String: it prints, compares and
+    // hashes as the String it flattens to, which is made once and kept.
+    static final int MIN_LENGTH = 64;
+
+    private final StringBuilder chars;
+    private final int length;
+    private String flat;
+
+    private TSString(StringBuilder chars, int length) {
+        this.chars = chars;
+        this.length = length;
+    }
+
+    static Object concat(CharSequence left, CharSequence right) {
+        // left + right, where both are String or TSString
+        int length = left.length() + right.length();
+        if (length < MIN_LENGTH) return left.toString() + right.toString();
+        if (left instanceof TSString) {
+            TSString rope = (TSString)left;
+            if (rope.length == rope.chars.length()) {
+                rope.chars.append(right instanceof TSString ? right.toString() : right);
+                return new TSString(rope.chars, length);
+            }
+        }
+        StringBuilder chars = new StringBuilder(length * 2);
+        chars.append(left instanceof TSString ? left.toString() : left);
+        chars.append(right instanceof TSString ? right.toString() : right);
+        return new TSString(chars, length);
+    }
+
+    static Object flatten(Object value) {
+        return value instanceof TSString ? value.toString() : value;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) throw new StringIndexOutOfBoundsException(index);
+        return chars.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        // only ever equal to another TSString: to compare with a String,
+        // flatten first, as Interpreter.isEqual does
+        return other instanceof TSString && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = chars.substring(0, length);
+        return flat;
+    }
+}
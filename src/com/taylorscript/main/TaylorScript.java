@@ -5,34 +5,77 @@ import org.sk.PrettyTable;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class TaylorScript {
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    private static List<String> heldErrors = null;
+    private static boolean hadErrorBeforeHold = false;
+    private static boolean streaming = false;
+    private static boolean printStats = false;
+    private static boolean parallelFragments = false;
+    private static boolean useAstCache = true;
+    private static boolean deferBodies = false;
+    private static boolean specialize = false;
+    private static boolean jit = false;
+    private static boolean memoize = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("USAGE: taylorscript [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        int argIndex = 0;
+        while (argIndex < args.length && args[argIndex].startsWith("-")) {
+            switch (args[argIndex++]) {
+                case "-stream": streaming = true; break;
+                case "-stats": printStats = true; break;
+                case "-parallel": parallelFragments = true; break;
+                case "-nocache": useAstCache = false; break;
+                case "-lazy": deferBodies = true; break;
+                case "-specialize": specialize = true; break;
+                case "-jit": jit = true; break;
+                case "-memo": memoize = true; break;
+                default: usage();
+            }
+        }
+        interpreter = new Interpreter(specialize, jit, memoize);
+
+        if (args.length - argIndex > 1) {
+            usage();
+        } else if (args.length - argIndex == 1) {
+            runFile(args[argIndex]);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println("USAGE: taylorscript [-stream] [-parallel] [-nocache] [-lazy] [-specialize] [-jit] [-memo] [-stats] [script]");
+        System.exit(64);
+    }
+
     private static void runFile(String filePath) throws IOException {
         if (!filePath.substring(filePath.lastIndexOf('.')).equals(".tay")) {
             System.err.println("[FileExtensionError] Source file must end with .tay extension.");
             System.exit(65);
         }
-        byte[] bytes = Files.readAllBytes(Paths.get(filePath));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (streaming) {
+            // decodes leniently, like new String(bytes, charset) does
+            try (Reader reader = new BufferedReader(new InputStreamReader(
+                    Files.newInputStream(Paths.get(filePath)), Charset.defaultCharset()))) {
+                runStream(reader);
+            }
+        } else {
+            Path path = Paths.get(filePath);
+            run(path, Files.readAllBytes(path));
+        }
+        if (printStats) printStats();
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
@@ -42,6 +85,8 @@ public class TaylorScript {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
+        // the session is one growing document; each line only runs what it added
+        Document session = new Document("");
         System.out.println("TaylorScript v0 (2024)");
         for (;;) {
             System.out.print("->> ");
@@ -49,21 +94,79 @@ public class TaylorScript {
             if (line == null) {
                 break;
             }
-            run(line);
+            int end = session.length();
+            int lineNumber = session.lines() + 1;
+            session.edit(end, 0, line + "\n");
+            // a line that re-parses statements before it (a 'Thats' after
+            // a When) would run them again
+            if (!hadError && !session.replaced().isEmpty()) {
+                error(lineNumber, "Cannot continue a statement that already ran.");
+            }
+            if (!hadError) execute(new Optimizer().optimize(session.changed()));
+            if (hadError) {
+                // rejected lines are taken out again so they cannot
+                // swallow the next line
+                session.edit(end, line.length() + 1, "");
+            }
             hadError = false;
         }
     }
 
-    private static void run(String source) throws IOException {
-        Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Statement> statements = parser.parse();
+    private static void run(Path path, byte[] bytes) throws IOException {
+        // an unchanged script is loaded from its .tayc file instead of parsed
+        List<Statement> statements = useAstCache ? AstCache.load(path, bytes) : null;
+        boolean isCached = statements != null;
+        Includes includes = null;
+        if (!isCached) {
+            Source source = Source.of(bytes, Charset.defaultCharset());
+            if (parallelFragments) {
+                ParallelParser parser = new ParallelParser(ForkJoinPool.commonPool());
+                statements = parser.parse(source);
+                includes = parser.includes();
+            } else {
+                Lexer lexer = new Lexer(source);
+                Parser parser = new Parser(lexer.scanArena(), deferBodies);
+                statements = parser.parse();
+                includes = lexer.includes();
+            }
+
+            if (hadError) return;
+            statements = new Optimizer().optimize(statements);
+        }
 
+        int frameSize = new Resolver().resolve(statements);
         if (hadError) return;
+        // storing would parse every deferred body
+        if (!isCached && useAstCache && !deferBodies) {
+            AstCache.store(path, bytes, includes, statements);
+        }
 
 //        System.out.println(new AstPrinter().print(expression));
-        interpreter.interpret(statements);
+        interpreter.interpret(statements, frameSize);
+    }
+
+    private static void runStream(Reader reader) {
+        // The parser pulls tokens from the lexer as it goes, so neither
+        // the whole source text nor the full token list is ever held.
+        Parser parser = new Parser(TokenBuffer.of(new Lexer(reader)));
+        List<Statement> statements = parser.parse();
+
+        if (hadError) return;
+
+        execute(new Optimizer().optimize(statements));
+    }
+
+    private static void execute(List<Statement> statements) {
+        int frameSize = new Resolver().resolve(statements);
+        if (hadError) return;
+
+        interpreter.interpret(statements, frameSize);
+    }
+
+    private static void printStats() {
+        System.err.println("[STATS] " + FragmentCache.shared.report());
+        System.err.println("[STATS] " + AstCache.report());
+        if (memoize) System.err.println("[STATS] " + Memo.report());
     }
 
     private static void printTokenTable(List<Token> tokens) {
@@ -82,21 +185,42 @@ public class TaylorScript {
         report(lineNumber, "", message);
     }
 
-    private static void report(int lineNumber, String where, String message) {
-        System.err.println("[LINE " + lineNumber + "] Error" + where + ": " + message);
+    private static synchronized void report(int lineNumber, String where, String message) {
+        String error = "[LINE " + lineNumber + "] Error" + where + ": " + message;
+        if (heldErrors != null) {
+            heldErrors.add(error);
+        } else {
+            System.err.println(error);
+        }
         hadError = true;
     }
 
+    static synchronized void holdErrors() {
+        // collects compile errors instead of printing them, for a front end
+        // that may retry with more input before the errors are final
+        heldErrors = new ArrayList<>();
+        hadErrorBeforeHold = hadError;
+    }
+
+    static synchronized void releaseErrors(boolean print) {
+        if (print) {
+            for (String error : heldErrors) System.err.println(error);
+        } else {
+            hadError = hadErrorBeforeHold;
+        }
+        heldErrors = null;
+    }
+
     static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
-            report(token.lineNumber, "at end", message);
+            report(token.lineNumber(), "at end", message);
         } else {
-            report(token.lineNumber, " at '" + token.lexeme + "'", message);
+            report(token.lineNumber(), " at '" + token.lexeme + "'", message);
         }
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println("[LINE " + error.token.lineNumber + "] " + error.getMessage());
+        System.err.println("[LINE " + error.token.lineNumber() + "] " + error.getMessage());
         hadRuntimeError = true;
     }
 }
\ No newline at end of file
@@ -4,13 +4,37 @@ class Token {
     final TokenType type;
     final String lexeme;
     final Object literal;
-    final int lineNumber;
+    private final int lineNumber;
+    private final Anchor anchor;
+
+    static class Anchor {
+        // First line of a block of text that can move after it was lexed;
+        // tokens anchored to it store their line relative to it
+        int lineNumber;
+
+        Anchor(int lineNumber) {
+            this.lineNumber = lineNumber;
+        }
+
+        int lineNumber() {
+            return lineNumber;
+        }
+    }
 
     Token(TokenType type, String lexeme, Object literal, int lineNumber) {
+        this(type, lexeme, literal, lineNumber, null);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int lineNumber, Anchor anchor) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.lineNumber = lineNumber;
+        this.anchor = anchor;
+    }
+
+    int lineNumber() {
+        return anchor == null ? lineNumber : anchor.lineNumber() + lineNumber;
     }
 
     public String toString() {
@@ -0,0 +1,212 @@
+package com.taylorscript.main;
+
+import java.util.Arrays;
+
+class TokenArena extends TokenBuffer {
+    // Packed token storage: one slot per token in parallel int arrays.
+    // Lexemes are cut from the source only when a Token is materialized.
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] lines = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // Sparse side table: indices of tokens carrying a literal, ascending.
+    // Numbers are kept unboxed; their literalValues slot stays null.
+    private int[] literalTokens = new int[16];
+    private Object[] literalValues = new Object[16];
+    private double[] numberValues = new double[16];
+    private int literalCount = 0;
+
+    // Runs of tokens lexed from the same source (fragments switch source)
+    private int[] runStarts = new int[4];
+    private Source[] runSources = new Source[4];
+    private int runCount = 0;
+    private final Source mainSource;
+
+    // Tokens of the main source are materialized relative to this, if set
+    private Token.Anchor anchor;
+
+    TokenArena(Source source) {
+        mainSource = source;
+        useSource(source);
+    }
+
+    void useSource(Source source) {
+        if (runCount > 0 && runStarts[runCount - 1] == size) {
+            runSources[runCount - 1] = source;
+            return;
+        }
+        if (runCount == runStarts.length) {
+            runStarts = Arrays.copyOf(runStarts, runCount * 2);
+            runSources = Arrays.copyOf(runSources, runCount * 2);
+        }
+        runStarts[runCount] = size;
+        runSources[runCount] = source;
+        runCount++;
+    }
+
+    void add(TokenType type, int start, int length, int line, Object literal) {
+        if (literal != null) {
+            addLiteral(literal, 0);
+        }
+        addSlot(type, start, length, line);
+    }
+
+    void addNumber(int start, int length, int line, double value) {
+        addLiteral(null, value);
+        addSlot(TokenType.NUMBER, start, length, line);
+    }
+
+    private void addSlot(TokenType type, int start, int length, int line) {
+        if (size == types.length) grow();
+        types[size] = type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    private void addLiteral(Object value, double number) {
+        if (literalCount == literalTokens.length) {
+            int capacity = literalCount * 2;
+            literalTokens = Arrays.copyOf(literalTokens, capacity);
+            literalValues = Arrays.copyOf(literalValues, capacity);
+            numberValues = Arrays.copyOf(numberValues, capacity);
+        }
+        literalTokens[literalCount] = size;
+        literalValues[literalCount] = value;
+        numberValues[literalCount] = number;
+        literalCount++;
+    }
+
+    void append(TokenArena other, int from, int to) {
+        // copies tokens [from, to) of another arena, keeping their sources
+        int literal = other.literalSlot(from);
+        int run = other.runAt(from);
+        while (from < to) {
+            int runEnd = run + 1 < other.runCount ? Math.min(other.runStarts[run + 1], to) : to;
+            useSource(other.runSources[run]);
+            for (int i = from; i < runEnd; i++) {
+                if (literal < other.literalCount && other.literalTokens[literal] == i) {
+                    addLiteral(other.literalValues[literal], other.numberValues[literal]);
+                    literal++;
+                }
+                addSlot(TYPES[other.types[i]], other.starts[i], other.lengths[i], other.lines[i]);
+            }
+            from = runEnd;
+            run++;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    int end(int index) {
+        return starts[index] + lengths[index];
+    }
+
+    boolean isMain(int index) {
+        // false for tokens spliced in from a fragment
+        return runSources[runAt(index)] == mainSource;
+    }
+
+    void anchor(Token.Anchor anchor) {
+        this.anchor = anchor;
+    }
+
+    @Override
+    Object literal(int index) {
+        int slot = Arrays.binarySearch(literalTokens, 0, literalCount, index);
+        if (slot < 0) return null;
+        return literalValues[slot] != null ? literalValues[slot] : (Object) numberValues[slot];
+    }
+
+    String lexeme(int index) {
+        return runSources[runAt(index)].substring(starts[index], starts[index] + lengths[index]);
+    }
+
+    private int runAt(int index) {
+        int run = Arrays.binarySearch(runStarts, 0, runCount, index);
+        return run >= 0 ? run : -run - 2;
+    }
+
+    private int literalSlot(int index) {
+        // first side table slot belonging to a token at or after index
+        int slot = Arrays.binarySearch(literalTokens, 0, literalCount, index);
+        return slot >= 0 ? slot : -slot - 1;
+    }
+
+    @Override
+    Token get(int index) {
+        if (anchor != null && isMain(index)) {
+            return new Token(type(index), lexeme(index), literal(index),
+                    lines[index] - anchor.lineNumber(), anchor);
+        }
+        return new Token(type(index), lexeme(index), literal(index), lines[index]);
+    }
+
+    TokenBuffer range(int from, int to, int eofLine) {
+        // view of tokens [from, to) followed by an EOF, for parsing a slice;
+        // eofLine 0 places the EOF on the line of the neighbouring token
+        return new Range(this, from, to, eofLine);
+    }
+
+    private static final class Range extends TokenBuffer {
+        private final TokenArena arena;
+        private final int from;
+        private final int length;
+        private final int eofLine;
+
+        Range(TokenArena arena, int from, int to, int eofLine) {
+            this.arena = arena;
+            this.from = from;
+            this.length = to - from;
+            this.eofLine = eofLine;
+        }
+
+        @Override
+        TokenType type(int index) {
+            return index < length ? arena.type(from + index) : TokenType.EOF;
+        }
+
+        @Override
+        Object literal(int index) {
+            return index < length ? arena.literal(from + index) : null;
+        }
+
+        @Override
+        Token get(int index) {
+            if (index < length) return arena.get(from + index);
+            if (eofLine > 0) return new Token(TokenType.EOF, "", null, eofLine);
+            int end = from + length;
+            int line = end < arena.size() ? arena.line(end) : end > 0 ? arena.line(end - 1) : 1;
+            return new Token(TokenType.EOF, "", null, line);
+        }
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+    }
+}
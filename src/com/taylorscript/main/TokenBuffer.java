@@ -0,0 +1,85 @@
+package com.taylorscript.main;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import static com.taylorscript.main.TokenType.EOF;
+
+abstract class TokenBuffer {
+    // Token input for the Parser, addressed by token index.
+
+    abstract TokenType type(int index);
+
+    abstract Token get(int index);
+
+    Object literal(int index) {
+        return get(index).literal;
+    }
+
+    static TokenBuffer of(List<Token> tokens) {
+        return new ListBuffer(tokens);
+    }
+
+    static TokenBuffer of(Lexer lexer) {
+        return new StreamingBuffer(lexer);
+    }
+
+    private static final class ListBuffer extends TokenBuffer {
+        private final List<Token> tokens;
+
+        ListBuffer(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        TokenType type(int index) {
+            return tokens.get(index).type;
+        }
+
+        @Override
+        Token get(int index) {
+            return tokens.get(index);
+        }
+    }
+
+    private static final class StreamingBuffer extends TokenBuffer {
+        // The parser never looks further back than the previous token,
+        // so only a small ring of recent tokens is kept.
+        private static final int WINDOW = 4;
+
+        private final Lexer lexer;
+        private final Token[] ring = new Token[WINDOW];
+        private int pulled = 0;  // number of tokens pulled so far
+
+        StreamingBuffer(Lexer lexer) {
+            this.lexer = lexer;
+        }
+
+        @Override
+        TokenType type(int index) {
+            return get(index).type;
+        }
+
+        @Override
+        Token get(int index) {
+            while (index >= pulled) {
+                Token last = pulled > 0 ? ring[(pulled - 1) % WINDOW] : null;
+                ring[pulled % WINDOW] = last != null && last.type == EOF ? last : pull();
+                pulled++;
+            }
+            if (index < pulled - WINDOW) {
+                throw new IllegalStateException("Token " + index + " is no longer buffered.");
+            }
+            return ring[index % WINDOW];
+        }
+
+        private Token pull() {
+            try {
+                return lexer.nextToken();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.taylorscript.main;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class UnboxedArithmeticTest {
+    // GC pressure of arithmetic: compared with an empty loop, each
+    // iteration should box only the value stored into t. A second boxed
+    // Double per iteration would take it over MAX_BYTES_PER_ITERATION.
+    private static final int ITERATIONS = 200000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+    // one boxed Double (16 bytes) per iteration, and some slack
+    private static final long MAX_BYTES_PER_ITERATION = 32;
+
+    @Test
+    void arithmeticOnLocalsBoxesOnlyTheStoredValue() throws IOException {
+        String script = "Define sum[a, b, c, d] [ Let t = 0;\n"
+                + "  AllTooWhile [Let i = 0; i < " + ITERATIONS + "; i += 1] t = t + a * b - c / d + (a - 1) * 2;\n"
+                + "  BackTo t; ]\n"
+                + "Define empty[] [ AllTooWhile [Let i = 0; i < " + ITERATIONS + "; i += 1] [] ]\n"
+                + "sum[1.5, 2, 3, 4];\n"
+                + "empty[];\n";
+        List<Statement> statements = new Optimizer().optimize(new Parser(new Lexer(script).scanArena()).parse());
+        int frameSize = new Resolver().resolve(statements);
+        List<Statement> arithmetic = statements.subList(0, 3);
+        List<Statement> baseline = new ArrayList<>(statements.subList(0, 2));
+        baseline.add(statements.get(3));
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            new Interpreter().interpret(arithmetic, frameSize);
+            new Interpreter().interpret(baseline, frameSize);
+        }
+        // the least of a few rounds, so that nothing else the JVM
+        // allocates on this thread now and then counts against it
+        long perIteration = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long loopBytes = allocatedBytes(baseline, frameSize);
+            long arithmeticBytes = allocatedBytes(arithmetic, frameSize) - loopBytes;
+            perIteration = Math.min(perIteration, arithmeticBytes / ITERATIONS);
+        }
+        assertTrue(perIteration <= MAX_BYTES_PER_ITERATION, "arithmetic allocates " + perIteration
+                + " bytes per iteration, more than " + MAX_BYTES_PER_ITERATION);
+    }
+
+    private static long allocatedBytes(List<Statement> statements, int frameSize) {
+        long allocated = allocatedBytes();
+        new Interpreter().interpret(statements, frameSize);
+        return allocatedBytes() - allocated;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}